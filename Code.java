@@ -1,30 +1,202 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 
 public class HotelReservationSystem {
     private static final String ROOMS_FILE = "rooms.csv";
     private static final String RES_FILE = "reservations.csv";
+    private static final String BIN_FILE = "reservations.bin";
+    private static final String SEG_DIR = "reservations.seg";
+    private static final Duration ARCHIVE_EVERY = Duration.ofHours(6);
+    private static final List<Room> SEED_ROOMS = List.of(
+        new Room(1, "101", RoomType.STANDARD, 2499.0),
+        new Room(2, "102", RoomType.STANDARD, 2499.0),
+        new Room(3, "201", RoomType.DELUXE, 3999.0),
+        new Room(4, "202", RoomType.DELUXE, 3999.0),
+        new Room(5, "301", RoomType.SUITE, 6999.0)
+    );
 
     private final Catalog catalog;
     private final ReservationStore store;
     private final PaymentProcessor payments;
+    private final OccupancyCalendar calendar;
+    private final SearchCache searchCache;
+    private final Analytics analytics;
 
     private final Scanner in;
+    private final String resFile;
+    private final Set<Long> cancelling = ConcurrentHashMap.newKeySet();
 
-    public HotelReservationSystem() {
+    public HotelReservationSystem(String resFile) {
+        this.resFile = resFile;
         this.catalog = new Catalog(ROOMS_FILE);
-        this.store = new ReservationStore(RES_FILE);
-        this.payments = new PaymentProcessor();
+        this.store = new ReservationStore(resFile);
+        this.payments = new PaymentProcessor(new SimulatedGateway(
+                Long.getLong("payments.latencyMs", 0), Double.parseDouble(System.getProperty("payments.failureRate", "0"))));
         this.in = new Scanner(System.in);
         bootstrapIfNeeded();
+        this.calendar = new OccupancyCalendar(catalog, store, LocalDate.now(), OccupancyCalendar.DEFAULT_NIGHTS);
+        calendar.rollDaily();
+        this.searchCache = new SearchCache(catalog, store, calendar,
+                Integer.getInteger("search.cacheSize", SearchCache.DEFAULT_CAPACITY));
+        this.analytics = Analytics.attach(catalog, store);
+        catalog.watch();
+        Metrics.registerJmx();
+        if (resFile.endsWith(".seg")) store.startArchiver(ARCHIVE_EVERY);
     }
 
     public static void main(String[] args) {
-        new HotelReservationSystem().run();
+        if (args.length >= 1 && args[0].equals("stress")) {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+            int bookings = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+            System.exit(BookingStress.run(threads, bookings) ? 0 : 1);
+        }
+        if (args.length >= 1 && args[0].equals("bench")) {
+            long[] sizes = args.length > 1
+                    ? Arrays.stream(args, 1, args.length).mapToLong(Long::parseLong).toArray()
+                    : new long[] { 1_000, 100_000 };
+            Bench.run(sizes);
+            return;
+        }
+        if (args.length == 3 && args[0].equals("generate")) {
+            Bench.generate(Path.of(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("export")) {
+            // export <csv|json> <file> [status=..] [roomId=..] [from=..] [to=..] [--binary|--segmented]
+            Map<String, String> filters = new HashMap<>();
+            for (int i = 3; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                if (eq > 0) filters.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+            }
+            ReservationStore store = new ReservationStore(reservationsFile(args), true);
+            try (Writer w = Files.newBufferedWriter(Path.of(args[2]))) {
+                long n = ReservationExport.write(store, ReservationFilter.parse(filters), args[1], w);
+                System.out.println("Exported " + n + " reservations to " + args[2]);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                store.close();
+            }
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("import")) {
+            // import <bookings.csv> [--binary|--segmented]
+            System.exit(BookingImport.run(Path.of(args[1]), reservationsFile(args)) ? 0 : 1);
+        }
+        if (args.length >= 2 && args[0].equals("cancel-import")) {
+            // cancel-import <ids.txt> [--binary|--segmented], one reservation id per line
+            System.exit(BookingImport.cancel(Path.of(args[1]), reservationsFile(args)) ? 0 : 1);
+        }
+        if (args.length >= 2 && args[0].equals("analytics")) {
+            // analytics verify | analytics <from> <to> [type], plus --binary|--segmented
+            System.exit(Analytics.run(args, reservationsFile(args)) ? 0 : 1);
+        }
+        if (args.length == 3 && args[0].equals("convert")) {
+            // e.g. convert reservations.csv reservations.bin (or back)
+            ReservationBackend.convert(args[1], args[2]);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("properties") && args[2].startsWith("--http")) {
+            // properties <dir> --http[=port]
+            PropertyGroup group = new PropertyGroup(Path.of(args[1]));
+            Runtime.getRuntime().addShutdownHook(new Thread(group::close));
+            new HttpApi(group).start(args[2].startsWith("--http=") ? Integer.parseInt(args[2].substring(7)) : HttpApi.DEFAULT_PORT);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("properties")) {
+            // properties <dir> <count> [checkIn checkOut [type]]
+            LocalDate inDate = args.length > 4 ? LocalDate.parse(args[3]) : LocalDate.now().plusDays(30);
+            LocalDate outDate = args.length > 4 ? LocalDate.parse(args[4]) : inDate.plusDays(2);
+            RoomType type = args.length > 5 ? RoomType.valueOf(args[5].toUpperCase()) : null;
+            PropertyGroup.run(Path.of(args[1]), Integer.parseInt(args[2]), inDate, outDate, type);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("loadtest")) {
+            String base = args.length > 1 ? args[1] : "http://localhost:" + HttpApi.DEFAULT_PORT;
+            int clients = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+            int requests = args.length > 3 ? Integer.parseInt(args[3]) : 20_000;
+            HttpLoadTest.run(base, clients, requests);
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("follow")) {
+            // follow <leaderHost:port> [httpPort] [maxLagMs]
+            int colon = args[1].lastIndexOf(':');
+            ReplicaView replica = new ReplicaView(args[1].substring(0, colon), Integer.parseInt(args[1].substring(colon + 1)),
+                    new Catalog(ROOMS_FILE), args.length > 3 ? Long.parseLong(args[3]) : ReplicaView.DEFAULT_MAX_LAG_MILLIS);
+            new HttpApi(replica).start(args.length > 2 ? Integer.parseInt(args[2]) : HttpApi.DEFAULT_FOLLOWER_PORT);
+            return;
+        }
+        HotelReservationSystem app = new HotelReservationSystem(reservationsFile(args));
+        for (String a : args) {
+            if (a.startsWith("--replicate")) {
+                new ReplicationServer(app.store, a.startsWith("--replicate=")
+                        ? Integer.parseInt(a.substring(12)) : ReplicationServer.DEFAULT_PORT);
+            }
+        }
+        for (String a : args) {
+            if (a.startsWith("--http")) {
+                int port = a.startsWith("--http=") ? Integer.parseInt(a.substring(7)) : HttpApi.DEFAULT_PORT;
+                Runtime.getRuntime().addShutdownHook(new Thread(app.store::close));
+                new HttpApi(app).start(port);
+                return;
+            }
+        }
+        app.run();
+    }
+
+    /** reservations.bin with --binary, the reservations.seg directory with --segmented, else reservations.csv. */
+    private static String reservationsFile(String[] args) {
+        List<String> flags = Arrays.asList(args);
+        if (flags.contains("--binary")) return BIN_FILE;
+        if (flags.contains("--segmented")) return SEG_DIR;
+        return RES_FILE;
     }
 
     private void run() {
@@ -37,6 +209,9 @@ public class HotelReservationSystem {
                 System.out.println("4) View reservation details");
                 System.out.println("5) List all rooms");
                 System.out.println("6) List all reservations");
+                System.out.println("7) Show metrics");
+                System.out.println("8) Occupancy and revenue report");
+                System.out.println("9) Verify analytics against a full scan");
                 System.out.println("0) Exit\n");
                 System.out.print("Choose: ");
                 String choice = in.nextLine().trim();
@@ -47,7 +222,11 @@ public class HotelReservationSystem {
                     case "4": handleViewDetails(); break;
                     case "5": listRooms(); break;
                     case "6": listReservations(); break;
+                    case "7": System.out.println(Metrics.prometheus()); break;
+                    case "8": handleReport(); break;
+                    case "9": verifyAnalytics(); break;
                     case "0":
+                        store.close();
                         System.out.println("Goodbye!");
                         return;
                     default:
@@ -67,13 +246,15 @@ public class HotelReservationSystem {
             return;
         }
         RoomType type = promptRoomTypeOptional();
-        List<Room> available = catalog.findAvailable(inDate, outDate, type, store.loadAll());
-        if (available.isEmpty()) {
+        SearchCache.Result available = searchCache.search(inDate, outDate, type);
+        if (available.rooms.isEmpty()) {
             System.out.println("No rooms available for the selected criteria.\n");
         } else {
             System.out.println("Available rooms:");
-            for (Room r : available) {
-                System.out.printf("- #%d | %s | %s | ₹%.2f/night\n", r.id, r.number, r.type, r.pricePerNight);
+            for (int i = 0; i < available.rooms.size(); i++) {
+                Room r = available.rooms.get(i);
+                System.out.printf("- #%d | %s | %s | ₹%.2f/night | ₹%.2f total\n", r.id, r.number, r.type, r.pricePerNight,
+                        available.totals[i]);
             }
             System.out.println();
         }
@@ -87,7 +268,7 @@ public class HotelReservationSystem {
             return;
         }
         RoomType type = promptRoomTypeOptional();
-        List<Room> available = catalog.findAvailable(inDate, outDate, type, store.loadAll());
+        List<Room> available = catalog.findAvailable(inDate, outDate, type, store);
         if (available.isEmpty()) {
             System.out.println("No rooms available for the selected criteria.\n");
             return;
@@ -106,53 +287,122 @@ public class HotelReservationSystem {
         System.out.print("Guest name: ");
         String guest = in.nextLine().trim();
 
-        long nights = Duration.between(inDate.atStartOfDay(), outDate.atStartOfDay()).toDays();
-        double amount = nights * room.pricePerNight;
-        System.out.printf("Total amount for %d nights: ₹%.2f\n", nights, amount);
+        System.out.printf("Total amount for %d nights: ₹%.2f\n", nights(inDate, outDate), quote(room, inDate, outDate));
 
         
         System.out.print("Enter card number (simulated, 16 digits): ");
         String card = in.nextLine().replaceAll("\\s+", "");
-        PaymentResult p = payments.charge(card, amount);
-        if (!p.success) {
-            System.out.println("Payment failed: " + p.message + "\n");
+        Outcome o = book(room, guest, inDate, outDate, card).join();
+        if (!o.ok) {
+            System.out.println(o.message + "\n");
             return;
         }
-        System.out.println("Payment successful, txn: " + p.txnId);
-
-        Reservation res = store.create(roomId, guest, inDate, outDate, amount, p.txnId);
-        System.out.println("Reservation CONFIRMED. Your Reservation ID is: " + res.id + "\n");
+        System.out.println("Payment successful, txn: " + o.reservation.paymentTxnId);
+        System.out.println("Reservation CONFIRMED. Your Reservation ID is: " + o.reservation.id + "\n");
     }
 
     private void handleCancel() {
         System.out.print("Enter Reservation ID to cancel: ");
         long id = Long.parseLong(in.nextLine().trim());
-        Reservation res = store.findById(id);
-        if (res == null) {
-            System.out.println("Reservation not found.\n");
+        Outcome o = cancel(id).join();
+        if (!o.ok) {
+            System.out.println(o.message + "\n");
             return;
         }
-        if (res.status == ResStatus.CANCELLED) {
-            System.out.println("Reservation already cancelled.\n");
-            return;
+        if (o.reservation.refundTxnId != null) {
+            System.out.println("Refund successful, txn: " + o.reservation.refundTxnId);
+        } else {
+            System.out.println("No refund as per policy (within 2 days of check-in).\n");
         }
+        System.out.println("Reservation cancelled.\n");
+    }
+
+    static long nights(LocalDate inDate, LocalDate outDate) {
+        return Duration.between(inDate.atStartOfDay(), outDate.atStartOfDay()).toDays();
+    }
+
+    static double quote(Room room, LocalDate inDate, LocalDate outDate) {
+        return nights(inDate, outDate) * room.pricePerNight;
+    }
+
+    /** Why the dates cannot be booked, or null if they can: a stay starts today or later and ends inside the analytics window. */
+    static String invalidStay(LocalDate inDate, LocalDate outDate) {
+        if (!outDate.isAfter(inDate)) return "Check-out must be after check-in.";
+        if (inDate.isBefore(LocalDate.now())) return "Check-in cannot be in the past.";
+        if (outDate.toEpochDay() > Analytics.END_DAY) return "Check-out cannot be after " + LocalDate.ofEpochDay(Analytics.END_DAY) + ".";
+        return null;
+    }
+
+    /**
+     * Holds the room, charges the card and then confirms the hold, or releases it if the charge
+     * fails, so a slow gateway never blocks other bookings and the room cannot be sold twice.
+     */
+    CompletableFuture<Outcome> book(Room room, String guest, LocalDate inDate, LocalDate outDate, String card) {
+        String invalid = invalidStay(inDate, outDate);
+        if (invalid != null) return CompletableFuture.completedFuture(Outcome.failed(invalid));
+        Reservation hold = store.hold(room.id, inDate, outDate);
+        if (hold == null) return CompletableFuture.completedFuture(Outcome.failed("Invalid room selection or not available."));
+        double amount = quote(room, inDate, outDate);
+        long t0 = System.nanoTime();
+        return payments.charge(card, amount).thenApply(p -> {
+            if (!p.success) {
+                store.release(hold);
+                return Outcome.failed("Payment failed: " + p.message);
+            }
+            try {
+                return Outcome.done(store.confirm(hold, guest, amount, p.txnId));
+            } catch (RuntimeException e) {
+                // confirm throws only when nothing was persisted, so the charge has to go back
+                store.release(hold);
+                payments.refund(p.txnId, amount).thenAccept(r -> {
+                    if (!r.success) System.err.println("Refund of " + p.txnId + " failed: " + r.message);
+                });
+                return Outcome.failed("Booking failed, payment " + p.txnId + " is being refunded: " + e.getMessage());
+            }
+        }).whenComplete((o, e) -> Metrics.BOOK.since(t0));
+    }
 
+    /** Cancels with the refund policy: full refund when cancelled at least 2 days before check-in. */
+    CompletableFuture<Outcome> cancel(long id) {
+        Reservation res = store.findById(id);
+        if (res == null) return CompletableFuture.completedFuture(Outcome.failed("Reservation not found."));
+        if (res.status == ResStatus.CANCELLED) return CompletableFuture.completedFuture(Outcome.failed("Reservation already cancelled."));
+        if (!store.isResident(id)) {
+            return CompletableFuture.completedFuture(Outcome.failed(ReservationStore.archivedMessage(id) + "."));
+        }
+        // only one caller may refund a given reservation
+        if (!cancelling.add(id)) return CompletableFuture.completedFuture(Outcome.failed("Cancellation already in progress."));
+        long t0 = System.nanoTime();
         long daysBefore = Duration.between(LocalDate.now().atStartOfDay(), res.checkIn.atStartOfDay()).toDays();
-        boolean refundable = daysBefore >= 2;
-        String refundTxn = null;
-        if (refundable) {
-            PaymentResult r = payments.refund(res.paymentTxnId, res.totalAmount);
-            if (!r.success) {
-                System.out.println("Refund failed: " + r.message + ". Cancellation aborted.\n");
-                return;
+        CompletableFuture<PaymentResult> refund = daysBefore >= 2
+                ? payments.refund(res.paymentTxnId, res.totalAmount, late -> refundedLate(id, late))
+                : CompletableFuture.completedFuture(null);
+        return refund.thenApply(r -> {
+            if (r != null && !r.success) return Outcome.failed("Refund failed: " + r.message + ". Cancellation aborted.");
+            try {
+                store.cancel(id, r != null ? r.txnId : null);
+            } catch (IllegalStateException e) {
+                return Outcome.failed(e.getMessage() + ".");
             }
-            refundTxn = r.txnId;
-            System.out.println("Refund successful, txn: " + refundTxn);
-        } else {
-            System.out.println("No refund as per policy (within 2 days of check-in).\n");
+            return Outcome.done(store.findById(id));
+        }).whenComplete((o, e) -> {
+            cancelling.remove(id);
+            Metrics.CANCEL.since(t0);
+        });
+    }
+
+    /**
+     * Records a refund the gateway paid after cancel() stopped waiting for it. A retried cancel
+     * gets the same refund back from the gateway and may have recorded it first.
+     */
+    private void refundedLate(long id, PaymentResult late) {
+        if (!late.success) return;
+        try {
+            Reservation res = store.findById(id);
+            if (res != null && res.status != ResStatus.CANCELLED) store.cancel(id, late.txnId);
+        } catch (RuntimeException e) {
+            System.err.println("Late refund " + late.txnId + " for reservation " + id + " not recorded: " + e.getMessage());
         }
-        store.cancel(id, refundTxn);
-        System.out.println("Reservation cancelled.\n");
     }
 
     private void handleViewDetails() {
@@ -187,13 +437,23 @@ public class HotelReservationSystem {
 
     private void listReservations() {
         System.out.println("\nReservations:");
-        for (Reservation r : store.loadAll()) {
+        store.scan(ReservationFilter.ALL, 0, Long.MAX_VALUE, r ->
             System.out.printf("ID:%d | Guest:%s | Room:%d | %s to %s | %s | ₹%.2f\n",
-                r.id, r.guestName, r.roomId, r.checkIn, r.checkOut, r.status, r.totalAmount);
-        }
+                r.id, r.guestName, r.roomId, r.checkIn, r.checkOut, r.status, r.totalAmount));
         System.out.println();
     }
 
+    private void handleReport() {
+        LocalDate from = promptDate("From night (YYYY-MM-DD): ");
+        LocalDate to = promptDate("To night, exclusive (YYYY-MM-DD): ");
+        System.out.println(analytics.report(from, to, promptRoomTypeOptional()) + "\n");
+    }
+
+    private void verifyAnalytics() {
+        List<String> diff = analytics.verify(store);
+        System.out.println(diff.isEmpty() ? "Analytics match a full scan.\n" : diff.size() + " cells differ, e.g. " + diff.get(0) + "\n");
+    }
+
     private LocalDate promptDate(String label) {
         DateTimeFormatter f = DateTimeFormatter.ofPattern("yyyy-MM-dd");
         while (true) {
@@ -223,17 +483,10 @@ public class HotelReservationSystem {
         try {
             if (!Files.exists(Path.of(ROOMS_FILE))) {
                
-                List<Room> seed = List.of(
-                    new Room(1, "101", RoomType.STANDARD, 2499.0),
-                    new Room(2, "102", RoomType.STANDARD, 2499.0),
-                    new Room(3, "201", RoomType.DELUXE, 3999.0),
-                    new Room(4, "202", RoomType.DELUXE, 3999.0),
-                    new Room(5, "301", RoomType.SUITE, 6999.0)
-                );
-                catalog.saveAll(seed);
-            }
-            if (!Files.exists(Path.of(RES_FILE))) {
-                Files.createFile(Path.of(RES_FILE));
+                catalog.saveAll(SEED_ROOMS);
+            }
+            if (!Files.exists(Path.of(resFile))) {
+                Files.createFile(Path.of(resFile));
             }
         } catch (IOException e) {
             throw new RuntimeException("Failed to bootstrap storage: " + e.getMessage());
@@ -261,7 +514,8 @@ public class HotelReservationSystem {
         @Override public int hashCode(){return Objects.hash(id);}        
     }
 
-    enum ResStatus { CONFIRMED, CANCELLED }
+    /** HELD marks an in-memory hold while payment is in flight; it is never persisted. */
+    enum ResStatus { CONFIRMED, CANCELLED, HELD }
     enum PayStatus { PAID, REFUNDED, FAILED }
 
     static class Reservation {
@@ -287,7 +541,7 @@ public class HotelReservationSystem {
         }
 
         static Reservation fromCsv(String line) {
-            
+            long t0 = System.nanoTime();
             String[] p = splitCsv(line);
             long id = Long.parseLong(p[0]);
             int roomId = Integer.parseInt(p[1]);
@@ -300,7 +554,9 @@ public class HotelReservationSystem {
             PayStatus ps = PayStatus.valueOf(p[8]);
             ResStatus rs = ResStatus.valueOf(p[9]);
             String refund = nullIfEmpty(p[10]);
-            return new Reservation(id, roomId, guest, ci, co, amt, created, payTxn, ps, rs, refund);
+            Reservation r = new Reservation(id, roomId, guest, ci, co, amt, created, payTxn, ps, rs, refund);
+            Metrics.CSV_PARSE.since(t0);
+            return r;
         }
 
         String toCsv() {
@@ -312,6 +568,11 @@ public class HotelReservationSystem {
             });
         }
 
+        Reservation cancelled(String refundTxn) {
+            return new Reservation(id, roomId, guestName, checkIn, checkOut, totalAmount, createdAt, paymentTxnId,
+                    refundTxn != null ? PayStatus.REFUNDED : paymentStatus, ResStatus.CANCELLED, refundTxn);
+        }
+
         private static String nullIfEmpty(String s){ return (s==null || s.isEmpty())? null : s; }
         private static String emptyIfNull(String s){ return s==null? "" : s; }
 
@@ -341,149 +602,4455 @@ public class HotelReservationSystem {
         }
     }
 
+    /**
+     * The fields occupancy and revenue are counted from, filled in place for each record a pass
+     * visits, so records still sitting in a snapshot image are read without being decoded.
+     */
+    static final class Stay {
+        long id;
+        int roomId;
+        long checkIn, checkOut; // epoch days
+        long amountPaise;
+        PayStatus payment;
+        ResStatus status;
+
+        Stay of(Reservation r) {
+            id = r.id; roomId = r.roomId;
+            checkIn = r.checkIn.toEpochDay(); checkOut = r.checkOut.toEpochDay();
+            amountPaise = Math.round(r.totalAmount * 100);
+            payment = r.paymentStatus; status = r.status;
+            return this;
+        }
+    }
+
    
 
+    /**
+     * Rooms are read once into an immutable snapshot (by id and by type) and only re-read when
+     * saveAll writes the file or, once watch() is running, when the file changes on disk.
+     * Listeners are told after each reload.
+     */
     static class Catalog {
-        private final String file;
-        Catalog(String file){ this.file = file; }
-        List<Room> all() {
-            try {
-                List<Room> out = new ArrayList<>();
-                for (String line : Files.readAllLines(Path.of(file))) {
-                    if (line.isBlank()) continue;
-                    out.add(Room.fromCsv(line));
+        private static final class Snapshot {
+            final List<Room> all;
+            final Map<Integer, Room> byId;
+            final Map<RoomType, List<Room>> byType;
+            final FileTime stamp;
+            Snapshot(List<Room> rooms, FileTime stamp) {
+                this.all = List.copyOf(rooms);
+                Map<Integer, Room> ids = new HashMap<>();
+                Map<RoomType, List<Room>> types = new EnumMap<>(RoomType.class);
+                for (RoomType t : RoomType.values()) types.put(t, new ArrayList<>());
+                for (Room r : rooms) {
+                    ids.put(r.id, r);
+                    types.get(r.type).add(r);
                 }
-                return out;
-            } catch (IOException e) { throw new RuntimeException(e); }
+                for (RoomType t : RoomType.values()) types.put(t, List.copyOf(types.get(t)));
+                this.byId = ids;
+                this.byType = types;
+                this.stamp = stamp;
+            }
+        }
+
+        private final String file;
+        private volatile Snapshot snap;
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+        Catalog(String file){
+            this.file = file;
+            this.snap = Files.exists(Path.of(file)) ? read() : new Snapshot(List.of(), null);
         }
+        List<Room> all() { return snap.all; }
+        /** Rooms of the given type, or every room for null. */
+        List<Room> rooms(RoomType type) { return type == null ? snap.all : snap.byType.get(type); }
         void saveAll(List<Room> rooms) {
             try (BufferedWriter w = Files.newBufferedWriter(Path.of(file))) {
                 for (Room r : rooms) {
                     w.write(r.toCsv()); w.newLine();
                 }
             } catch (IOException e) { throw new RuntimeException(e); }
+            reload();
         }
-        Room byId(int id) { return all().stream().filter(r->r.id==id).findFirst().orElse(null); }
+        Room byId(int id) { return snap.byId.get(id); }
 
-        List<Room> findAvailable(LocalDate inDate, LocalDate outDate, RoomType type, List<Reservation> allRes) {
-            List<Room> rooms = all();
-            if (type != null) rooms.removeIf(r -> r.type != type);
-            List<Room> available = new ArrayList<>();
-            for (Room r : rooms) {
-                boolean occupied = false;
-                for (Reservation res : allRes) {
-                    if (res.status == ResStatus.CANCELLED) continue;
-                    if (res.roomId != r.id) continue;
-                    if (datesOverlap(inDate, outDate, res.checkIn, res.checkOut)) {
-                        occupied = true; break;
+        void addListener(Runnable l) { listeners.add(l); }
+
+        /** Starts a daemon thread that reloads the catalog whenever the rooms file changes. */
+        void watch() {
+            Path path = Path.of(file).toAbsolutePath();
+            try {
+                WatchService ws = path.getFileSystem().newWatchService();
+                path.getParent().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                Thread t = new Thread(() -> {
+                    while (true) {
+                        WatchKey key;
+                        try { key = ws.take(); } catch (InterruptedException e) { return; }
+                        boolean touched = false;
+                        for (WatchEvent<?> ev : key.pollEvents()) {
+                            if (path.getFileName().equals(ev.context())) touched = true;
+                        }
+                        key.reset();
+                        if (touched) reloadIfChanged();
                     }
-                }
-                if (!occupied) available.add(r);
-            }
-            return available;
+                }, "catalog-watcher");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) { throw new RuntimeException(e); }
         }
 
-        private boolean datesOverlap(LocalDate aStart, LocalDate aEnd, LocalDate bStart, LocalDate bEnd) {
-            
-            return !aEnd.isBefore(bStart) && !bEnd.isBefore(aStart) && aStart.isBefore(aEnd) && bStart.isBefore(bEnd)
-                   && !(aEnd.equals(bStart) || bEnd.equals(aStart));
+        private void reloadIfChanged() {
+            try {
+                if (Objects.equals(Files.getLastModifiedTime(Path.of(file)), snap.stamp)) return;
+                reload();
+            } catch (IOException | RuntimeException e) {
+                // a half-written file; keep serving the previous snapshot until the next change
+                System.err.println("Could not reload rooms: " + e.getMessage());
+            }
         }
-    }
 
-    static class ReservationStore {
-        private final String file;
-        ReservationStore(String file){ this.file = file; }
+        private synchronized void reload() {
+            snap = read();
+            for (Runnable l : listeners) l.run();
+        }
 
-        synchronized List<Reservation> loadAll() {
+        private Snapshot read() {
             try {
-                if (!Files.exists(Path.of(file))) return new ArrayList<>();
-                List<Reservation> out = new ArrayList<>();
+                FileTime stamp = Files.getLastModifiedTime(Path.of(file));
+                List<Room> out = new ArrayList<>();
                 for (String line : Files.readAllLines(Path.of(file))) {
                     if (line.isBlank()) continue;
-                    out.add(Reservation.fromCsv(line));
+                    out.add(Room.fromCsv(line));
                 }
-                return out;
+                return new Snapshot(out, stamp);
             } catch (IOException e) { throw new RuntimeException(e); }
         }
 
-        synchronized Reservation create(int roomId, String guest, LocalDate ci, LocalDate co, double amount, String payTxn) {
-            List<Reservation> all = loadAll();
-            long nextId = all.stream().mapToLong(r->r.id).max().orElse(1000) + 1; // start at 1001
-            Reservation r = new Reservation(nextId, roomId, guest, ci, co, amount, LocalDateTime.now(),
-                    payTxn, PayStatus.PAID, ResStatus.CONFIRMED, null);
-            append(r);
-            return r;
+        List<Room> findAvailable(LocalDate inDate, LocalDate outDate, RoomType type, ReservationStore store) {
+            List<Room> available = new ArrayList<>();
+            for (Room r : rooms(type)) {
+                if (store.isFree(r.id, inDate, outDate)) available.add(r);
+            }
+            return available;
         }
+    }
 
-        synchronized void cancel(long id, String refundTxn) {
-            List<Reservation> all = loadAll();
-            List<String> lines = new ArrayList<>();
-            boolean found = false;
-            for (Reservation r : all) {
-                if (r.id == id) {
-                    found = true;
-                    Reservation updated = new Reservation(r.id, r.roomId, r.guestName, r.checkIn, r.checkOut,
-                            r.totalAmount, r.createdAt, r.paymentTxnId,
-                            refundTxn != null ? PayStatus.REFUNDED : r.paymentStatus,
-                            ResStatus.CANCELLED, refundTxn);
-                    lines.add(updated.toCsv());
-                } else {
-                    lines.add(r.toCsv());
+    /**
+     * Confirmed stays per room, sorted by check-in, so an availability probe only looks at the
+     * stays that start shortly before the requested check-out instead of scanning every reservation.
+     * Each room's stays are guarded by their own monitor, so rooms never contend with each other.
+     * Loading only groups the ids of the stays by room, without decoding a record; each room
+     * looks its stays up and sorts them on first use, so startup does not pay for rooms nobody
+     * asks about.
+     */
+    static class AvailabilityIndex {
+        private class RoomStays {
+            private final TreeMap<LocalDate, List<Reservation>> byCheckIn = new TreeMap<>();
+            long maxNights;
+            private long[] loaded; // ids from the initial load, not yet placed
+            private int loadedCount;
+
+            /** The stays by check-in, placing the loaded ones first; call holding the monitor. */
+            TreeMap<LocalDate, List<Reservation>> byCheckIn() {
+                if (loaded != null) {
+                    for (int i = 0; i < loadedCount; i++) {
+                        // looked up now, so a stay cancelled or archived since the load is left out
+                        Reservation r = lookup.apply(loaded[i]);
+                        if (r != null && r.status != ResStatus.CANCELLED) place(this, r);
+                    }
+                    loaded = null;
                 }
+                return byCheckIn;
             }
-            if (!found) throw new RuntimeException("Reservation not found");
-            try {
-                Files.write(Path.of(file), lines);
-            } catch (IOException e) { throw new RuntimeException(e); }
         }
 
-        synchronized Reservation findById(long id) {
-            return loadAll().stream().filter(r->r.id==id).findFirst().orElse(null);
+        private final Map<Integer, RoomStays> rooms = new ConcurrentHashMap<>();
+        private final LongFunction<Reservation> lookup;
+
+        /**
+         * Indexes the table's stays, taking the image's room index as it is when the table has
+         * one; lookup is how a room finds its stays by id later, with whatever locking the table needs.
+         */
+        AvailabilityIndex(ReservationTable all, LongFunction<Reservation> lookup) {
+            this.lookup = lookup;
+            Map<Integer, long[]> imageRooms = all.imageRooms();
+            if (imageRooms != null) {
+                imageRooms.forEach((roomId, ids) -> {
+                    RoomStays stays = new RoomStays();
+                    stays.loaded = ids; // never written to: the first id added past it copies the array
+                    stays.loadedCount = ids.length;
+                    rooms.put(roomId, stays);
+                });
+            }
+            all.forEachStay(imageRooms == null, s -> {
+                if (s.status == ResStatus.CANCELLED) return;
+                RoomStays stays = rooms.computeIfAbsent(s.roomId, k -> {
+                    RoomStays fresh = new RoomStays();
+                    fresh.loaded = new long[8];
+                    return fresh;
+                });
+                if (stays.loadedCount == stays.loaded.length) stays.loaded = Arrays.copyOf(stays.loaded, stays.loadedCount * 2);
+                stays.loaded[stays.loadedCount++] = s.id;
+            });
+        }
+
+        void add(Reservation r) {
+            if (r.status == ResStatus.CANCELLED) return;
+            RoomStays stays = rooms.computeIfAbsent(r.roomId, k -> new RoomStays());
+            synchronized (stays) {
+                stays.byCheckIn();
+                place(stays, r);
+            }
         }
 
-        private void append(Reservation r) {
-            try (BufferedWriter w = Files.newBufferedWriter(Path.of(file), StandardOpenOption.APPEND)) {
-                w.write(r.toCsv()); w.newLine();
-            } catch (IOException e) { throw new RuntimeException(e); }
+        private static void place(RoomStays stays, Reservation r) {
+            stays.byCheckIn.computeIfAbsent(r.checkIn, k -> new ArrayList<>(1)).add(r);
+            stays.maxNights = Math.max(stays.maxNights, r.checkOut.toEpochDay() - r.checkIn.toEpochDay());
+        }
+
+        void remove(Reservation r) {
+            RoomStays stays = rooms.get(r.roomId);
+            if (stays == null) return;
+            synchronized (stays) {
+                List<Reservation> sameDay = stays.byCheckIn().get(r.checkIn);
+                if (sameDay == null) return;
+                sameDay.removeIf(x -> x.id == r.id);
+                if (sameDay.isEmpty()) stays.byCheckIn().remove(r.checkIn);
+            }
+        }
+
+        List<Reservation> overlapping(int roomId, LocalDate inDate, LocalDate outDate) {
+            List<Reservation> out = new ArrayList<>();
+            RoomStays stays = rooms.get(roomId);
+            if (stays == null) return out;
+            synchronized (stays) {
+                TreeMap<LocalDate, List<Reservation>> byCheckIn = stays.byCheckIn(); // places loaded stays, settling maxNights
+                LocalDate from = inDate.minusDays(stays.maxNights);
+                for (List<Reservation> sameDay : byCheckIn.subMap(from, true, outDate, false).values()) {
+                    for (Reservation res : sameDay) {
+                        if (res.checkOut.isAfter(inDate)) out.add(res);
+                    }
+                }
+            }
+            return out;
+        }
+
+        boolean isFree(int roomId, LocalDate inDate, LocalDate outDate) {
+            RoomStays stays = rooms.get(roomId);
+            if (stays == null) return true;
+            synchronized (stays) {
+                TreeMap<LocalDate, List<Reservation>> byCheckIn = stays.byCheckIn();
+                // any stay overlapping [inDate, outDate) must start before outDate and no earlier than inDate - maxNights
+                LocalDate from = inDate.minusDays(stays.maxNights);
+                for (List<Reservation> sameDay : byCheckIn.subMap(from, true, outDate, false).values()) {
+                    for (Reservation res : sameDay) {
+                        if (res.checkOut.isAfter(inDate)) return false;
+                    }
+                }
+            }
+            return true;
         }
     }
 
-    
+    interface ReservationListener {
+        void onCreated(Reservation r);
+        void onCancelled(Reservation r);
+    }
 
-    static class PaymentProcessor {
-        private final Random random = new Random();
-        PaymentResult charge(String cardNumber, double amount) {
-            if (amount <= 0) return new PaymentResult(false, null, "Invalid amount");
-            if (!isPlausibleCard(cardNumber)) return new PaymentResult(false, null, "Card declined");
-            String txn = genTxn("PAY");
-            return new PaymentResult(true, txn, "Charged ₹" + String.format("%.2f", amount));
+    /**
+     * Occupancy bitset over a fixed horizon of nights: one bit per (room, night), laid out
+     * night-word-major so a window check ORs the same word for every room in one linear pass.
+     * Windows outside the horizon fall back to the store's index.
+     */
+    static class OccupancyCalendar implements ReservationListener {
+        static final int DEFAULT_NIGHTS = 730;
+
+        private final Catalog catalog;
+        private final ReservationStore store;
+        private long startDay;
+        private final int nights;
+        private final int words;
+        private Room[] rooms;
+        private Map<Integer, Integer> slotOf;
+        private long[] bits; // bits[word * rooms.length + slot]
+
+        OccupancyCalendar(Catalog catalog, ReservationStore store, LocalDate start, int nights) {
+            this.catalog = catalog; this.store = store;
+            this.nights = nights; this.words = (nights + 63) >>> 6;
+            store.quiesced(() -> {
+                roll(start);
+                store.addListener(this);
+                return null;
+            });
+            catalog.addListener(() -> roll(start()));
         }
-        PaymentResult refund(String paymentTxnId, double amount) {
-            if (paymentTxnId == null || paymentTxnId.isEmpty())
-                return new PaymentResult(false, null, "Original payment missing");
-            String txn = genTxn("RFD");
-            return new PaymentResult(true, txn, "Refunded ₹" + String.format("%.2f", amount));
+
+        /**
+         * Moves the horizon to start at the given night and rebuilds the bitset from the store.
+         * Runs with writes quiesced, so no booking lands between the load and the rebuild.
+         */
+        void roll(LocalDate start) {
+            store.quiesced(() -> {
+                List<Room> all = catalog.all();
+                synchronized (this) {
+                    startDay = start.toEpochDay();
+                    rooms = all.toArray(new Room[0]);
+                    slotOf = new HashMap<>();
+                    for (int i = 0; i < rooms.length; i++) slotOf.put(rooms[i].id, i);
+                    bits = new long[words * rooms.length];
+                    store.forEachStay(s -> {
+                        if (s.status != ResStatus.CANCELLED) mark(s.roomId, s.checkIn, s.checkOut, true);
+                    });
+                }
+                return null;
+            });
         }
-        private boolean isPlausibleCard(String card) {
-            if (card == null || !card.matches("\\d{16}")) return false;
-            return luhn(card);
+
+        /** Checks hourly on the stores' background thread and rolls the horizon to start today once the date changes. */
+        void rollDaily() {
+            ReservationStore.BACKGROUND.scheduleWithFixedDelay(() -> {
+                try {
+                    LocalDate today = LocalDate.now();
+                    if (today.isAfter(start())) roll(today);
+                } catch (RuntimeException e) {
+                    System.err.println("Calendar roll failed: " + e.getMessage());
+                }
+            }, 1, 1, TimeUnit.HOURS);
         }
-        private boolean luhn(String s){
-            int sum=0; boolean alt=false;
-            for (int i=s.length()-1;i>=0;i--){
-                int n=s.charAt(i)-'0';
-                if (alt){ n*=2; if (n>9) n-=9; }
-                sum+=n; alt=!alt;
+
+        synchronized LocalDate start() { return LocalDate.ofEpochDay(startDay); }
+
+        @Override public synchronized void onCreated(Reservation r) { mark(r, true); }
+
+        @Override public synchronized void onCancelled(Reservation r) {
+            mark(r, false);
+            // stays that overlapped the cancelled one (legacy double bookings) still hold their nights
+            for (Reservation other : store.staysOverlapping(r.roomId, r.checkIn, r.checkOut)) {
+                if (other.status == ResStatus.CONFIRMED) mark(other, true);
             }
-            return sum%10==0;
         }
-        private String genTxn(String prefix){
-            return prefix + "-" + (100000 + random.nextInt(900000)) + "-" + System.currentTimeMillis();
+
+        List<Room> findAvailable(LocalDate inDate, LocalDate outDate, RoomType type) {
+            long t0 = System.nanoTime();
+            List<Room> available = available(inDate, outDate, type);
+            Metrics.SEARCH.since(t0);
+            return available;
+        }
+
+        /** findAvailable without recording a search, for callers that time a larger search themselves. */
+        List<Room> available(LocalDate inDate, LocalDate outDate, RoomType type) {
+            List<Room> available = freeRooms(inDate, outDate, type);
+            return available != null ? available : catalog.findAvailable(inDate, outDate, type, store);
+        }
+
+        /** Answers many windows at once; each entry of the result matches windows.get(i). */
+        List<List<Room>> findAvailable(List<LocalDate[]> windows, RoomType type) {
+            List<List<Room>> out = new ArrayList<>(windows.size());
+            for (LocalDate[] w : windows) out.add(findAvailable(w[0], w[1], type));
+            return out;
+        }
+
+        /** Free rooms for every night in [inDate, outDate), or null if the window leaves the horizon. */
+        private synchronized List<Room> freeRooms(LocalDate inDate, LocalDate outDate, RoomType type) {
+            int from = (int) (inDate.toEpochDay() - startDay);
+            int to = (int) (outDate.toEpochDay() - startDay);
+            if (from < 0 || to > nights || from >= to) return null;
+            int n = rooms.length;
+            long[] busy = new long[n];
+            int lastWord = (to - 1) >>> 6;
+            for (int w = from >>> 6; w <= lastWord; w++) {
+                long mask = -1L;
+                if (w == from >>> 6) mask &= -1L << (from & 63);
+                if (w == lastWord) mask &= -1L >>> (63 - ((to - 1) & 63));
+                int base = w * n;
+                for (int i = 0; i < n; i++) busy[i] |= bits[base + i] & mask;
+            }
+            List<Room> available = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (busy[i] == 0 && (type == null || rooms[i].type == type)) available.add(rooms[i]);
+            }
+            return available;
+        }
+
+        private void mark(Reservation r, boolean occupied) {
+            mark(r.roomId, r.checkIn.toEpochDay(), r.checkOut.toEpochDay(), occupied);
+        }
+
+        private void mark(int roomId, long checkIn, long checkOut, boolean occupied) {
+            long from = Math.max(0, checkIn - startDay), to = Math.min(nights, checkOut - startDay);
+            if (from >= to) return; // outside the horizon
+            Integer slot = slotOf.get(roomId);
+            if (slot == null) return;
+            for (int night = (int) from; night < to; night++) {
+                int i = (night >>> 6) * rooms.length + slot;
+                if (occupied) bits[i] |= 1L << (night & 63);
+                else bits[i] &= ~(1L << (night & 63));
+            }
         }
     }
 
-    static class PaymentResult {
-        final boolean success; final String txnId; final String message;
-        PaymentResult(boolean success, String txnId, String message){ this.success=success; this.txnId=txnId; this.message=message; }
+    /**
+     * Bounded LRU of search results keyed by (check-in, check-out, type): the free rooms plus
+     * each one's total for the stay. A booking or cancellation drops exactly the entries whose
+     * dates overlap the stay and whose type covers the room; a catalog change drops everything.
+     * A miss computed while any invalidation landed is returned but not stored, so a search
+     * racing a booking never caches a stale answer.
+     */
+    static class SearchCache implements ReservationListener {
+        static final int DEFAULT_CAPACITY = 4096;
+
+        private static final class Key {
+            final LocalDate inDate, outDate;
+            final RoomType type; // null for any
+
+            Key(LocalDate inDate, LocalDate outDate, RoomType type) {
+                this.inDate = inDate; this.outDate = outDate; this.type = type;
+            }
+
+            @Override public boolean equals(Object o) {
+                if (!(o instanceof Key)) return false;
+                Key k = (Key) o;
+                return inDate.equals(k.inDate) && outDate.equals(k.outDate) && type == k.type;
+            }
+
+            @Override public int hashCode() { return Objects.hash(inDate, outDate, type); }
+        }
+
+        static final class Result {
+            final List<Room> rooms;
+            final double[] totals; // totals[i] is the stay's price in rooms.get(i)
+
+            Result(List<Room> rooms, double[] totals) { this.rooms = rooms; this.totals = totals; }
+
+            /** The rooms with each one's total for the stay. */
+            static Result quoted(List<Room> rooms, LocalDate inDate, LocalDate outDate) {
+                double[] totals = new double[rooms.size()];
+                for (int i = 0; i < totals.length; i++) totals[i] = quote(rooms.get(i), inDate, outDate);
+                return new Result(List.copyOf(rooms), totals);
+            }
+        }
+
+        private final Catalog catalog;
+        private final OccupancyCalendar calendar;
+        private final LinkedHashMap<Key, Result> entries;
+        private long version; // bumped by every invalidation
+
+        SearchCache(Catalog catalog, ReservationStore store, OccupancyCalendar calendar, int capacity) {
+            this.catalog = catalog; this.calendar = calendar;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) { return size() > capacity; }
+            };
+            store.addListener(this);
+            catalog.addListener(this::clear);
+        }
+
+        Result search(LocalDate inDate, LocalDate outDate, RoomType type) {
+            Key key = new Key(inDate, outDate, type);
+            long seen;
+            synchronized (this) {
+                Result hit = entries.get(key);
+                if (hit != null) {
+                    Metrics.SEARCH_CACHE_HITS.increment();
+                    return hit;
+                }
+                seen = version;
+            }
+            Metrics.SEARCH_CACHE_MISSES.increment();
+            Result result = Result.quoted(calendar.findAvailable(inDate, outDate, type), inDate, outDate);
+            synchronized (this) {
+                if (version == seen) entries.put(key, result);
+            }
+            return result;
+        }
+
+        synchronized int size() { return entries.size(); }
+
+        @Override public void onCreated(Reservation r) { invalidate(r); }
+
+        @Override public void onCancelled(Reservation r) { invalidate(r); }
+
+        private void invalidate(Reservation r) {
+            Room room = catalog.byId(r.roomId);
+            RoomType type = room == null ? null : room.type;
+            synchronized (this) {
+                version++;
+                entries.keySet().removeIf(k -> k.inDate.isBefore(r.checkOut) && r.checkIn.isBefore(k.outDate)
+                        && (k.type == null || type == null || k.type == type));
+            }
+        }
+
+        private synchronized void clear() {
+            version++;
+            entries.clear();
+        }
+    }
+
+    /**
+     * Occupancy and revenue per room type per night, kept in primitive arrays laid out
+     * day-major (index day * TYPES + type) and updated by every create and cancel, so a range
+     * report is a linear pass over the days in the range. A stay adds one room-night and its
+     * share of the amount (in paise) to each night; booking, cancellation and refund counts go
+     * to the check-in night. Available room-nights come from the current catalog. Only stays
+     * within [FIRST_DAY, END_DAY] are counted, whether scanned, replayed or live, so one absurd
+     * date cannot grow the arrays without bound. Each archived month's totals are kept in a
+     * sidecar beside the archive, so startup reads only the months archived since.
+     */
+    static class Analytics implements ReservationListener {
+        private static final int TYPES = RoomType.values().length;
+        private static final int MIN_DAYS = 1024;
+        private static final int SUMMARIES_MAGIC = 0x48524131; // "HRA1"
+        private static final int CELL_BYTES = 2 * Long.BYTES + 3 * Integer.BYTES;
+        static final long FIRST_DAY = LocalDate.of(2000, 1, 1).toEpochDay(), END_DAY = LocalDate.of(2100, 1, 1).toEpochDay();
+
+        static final class Report {
+            final LocalDate from, to;
+            final RoomType type; // null for all types
+            long roomNights, availableRoomNights, bookings, cancellations, refunds;
+            double revenue;
+
+            Report(LocalDate from, LocalDate to, RoomType type) { this.from = from; this.to = to; this.type = type; }
+
+            double occupancy() { return availableRoomNights == 0 ? 0 : (double) roomNights / availableRoomNights; }
+            double adr() { return roomNights == 0 ? 0 : revenue / roomNights; }
+            double revPar() { return availableRoomNights == 0 ? 0 : revenue / availableRoomNights; }
+            double cancellationRate() { return bookings == 0 ? 0 : (double) cancellations / bookings; }
+            double refundRate() { return bookings == 0 ? 0 : (double) refunds / bookings; }
+
+            @Override public String toString() {
+                return String.format("%s to %s, %s: occupancy %.1f%% (%d of %d room-nights), revenue ₹%.2f, ADR ₹%.2f, "
+                        + "RevPAR ₹%.2f, %d bookings, cancellation rate %.1f%%, refund rate %.1f%%",
+                        from, to, type == null ? "all types" : type, occupancy() * 100, roomNights, availableRoomNights,
+                        revenue, adr(), revPar(), bookings, cancellationRate() * 100, refundRate() * 100);
+            }
+        }
+
+        private final Catalog catalog;
+        private long startDay;
+        private int days;
+        private long[] nights, revenuePaise;
+        private int[] bookings, cancellations, refunds;
+
+        private Analytics(Catalog catalog) {
+            this.catalog = catalog;
+            this.startDay = LocalDate.now().toEpochDay() - MIN_DAYS / 2;
+            allocate(MIN_DAYS);
+        }
+
+        /**
+         * Built from a scan of every resident reservation plus each archived month's totals, read
+         * from the sidecar when it holds them under the month's current key and counted (then
+         * saved) otherwise, then kept current as the store's listener. Writes are quiesced
+         * meanwhile so no change is counted twice or missed; faulting archived months in or out
+         * changes no totals and sends no events.
+         */
+        static Analytics attach(Catalog catalog, ReservationStore store) {
+            return store.quiesced(() -> {
+                Analytics a = new Analytics(catalog);
+                Path sidecar = store.archiveSidecar("analytics.bin");
+                Map<String, byte[]> saved = sidecar == null ? Map.of() : readSummaries(sidecar, catalog), kept = new HashMap<>();
+                store.forEachStayWithArchived(a::count, (key, read) -> {
+                    byte[] summary = saved.get(key);
+                    if (summary == null) {
+                        Analytics month = new Analytics(catalog);
+                        read.accept(month::count);
+                        summary = month.summary();
+                    }
+                    kept.put(key, summary);
+                    a.add(summary);
+                });
+                if (sidecar != null && !kept.keySet().equals(saved.keySet())) writeSummaries(sidecar, catalog, kept);
+                store.addListener(a);
+                return a;
+            });
+        }
+
+        /** Compares these live aggregates with a scan of the full history, taken with writes quiesced. */
+        List<String> verify(ReservationStore store) {
+            return store.quiesced(() -> {
+                Analytics full = new Analytics(catalog);
+                store.forEachStayWithArchived(full::count);
+                return diff(full);
+            });
+        }
+
+        /**
+         * Rebuilds from the store's log through the incremental path: each snapshot record as its
+         * create (then its cancel, if it ended cancelled), then every journaled change in order.
+         * Events the snapshot already covers are skipped; a cancel or refund of a reservation never
+         * created throws IllegalStateException. finalStates collects where each reservation ended up.
+         */
+        static Analytics replay(Catalog catalog, ReservationStore store, Map<Long, Reservation> finalStates) {
+            Analytics a = new Analytics(catalog);
+            store.history(r -> a.replayCreate(r, finalStates), event -> {
+                int comma = event.indexOf(',');
+                String op = event.substring(0, comma), body = event.substring(comma + 1);
+                switch (op) {
+                    case "CREATE": a.replayCreate(Reservation.fromCsv(body), finalStates); break;
+                    case "CANCEL": a.replayCancel(Long.parseLong(body), null, finalStates); break;
+                    case "REFUND": {
+                        String[] p = Reservation.splitCsv(body);
+                        a.replayCancel(Long.parseLong(p[0]), p[1], finalStates);
+                        break;
+                    }
+                    default: break; // SEQ
+                }
+            });
+            return a;
+        }
+
+        private void replayCreate(Reservation r, Map<Long, Reservation> finalStates) {
+            if (r.status == ResStatus.HELD || finalStates.putIfAbsent(r.id, r) != null) return;
+            if (r.status == ResStatus.CANCELLED) {
+                onCreated(new Reservation(r.id, r.roomId, r.guestName, r.checkIn, r.checkOut, r.totalAmount,
+                        r.createdAt, r.paymentTxnId, PayStatus.PAID, ResStatus.CONFIRMED, null));
+                onCancelled(r);
+            } else {
+                onCreated(r);
+            }
+        }
+
+        private void replayCancel(long id, String refundTxn, Map<Long, Reservation> finalStates) {
+            Reservation r = finalStates.get(id);
+            if (r == null) throw new IllegalStateException("Journal cancels unknown reservation " + id);
+            if (r.status == ResStatus.CANCELLED) return;
+            Reservation updated = r.cancelled(refundTxn);
+            finalStates.put(id, updated);
+            onCancelled(updated);
+        }
+
+        /** Adds one reservation in its final state: only confirmed stays hold nights and revenue. */
+        private synchronized void count(Stay s) {
+            int type = typeOf(s.roomId);
+            if (type < 0 || s.status == ResStatus.HELD || !counted(s.checkIn, s.checkOut)) return;
+            ensure(s.checkIn, s.checkOut);
+            int in = (int) (s.checkIn - startDay);
+            bookings[in * TYPES + type]++;
+            if (s.status == ResStatus.CANCELLED) {
+                cancellations[in * TYPES + type]++;
+                if (s.payment == PayStatus.REFUNDED) refunds[in * TYPES + type]++;
+            } else {
+                spread(s.checkIn, s.checkOut, s.amountPaise, type, 1);
+            }
+        }
+
+        @Override public synchronized void onCreated(Reservation r) {
+            int type = typeOf(r.roomId);
+            if (type < 0 || !counted(r.checkIn.toEpochDay(), r.checkOut.toEpochDay())) return;
+            ensure(r.checkIn.toEpochDay(), r.checkOut.toEpochDay());
+            bookings[(int) (r.checkIn.toEpochDay() - startDay) * TYPES + type]++;
+            spread(r, type, 1);
+        }
+
+        @Override public synchronized void onCancelled(Reservation r) {
+            int type = typeOf(r.roomId);
+            if (type < 0 || !counted(r.checkIn.toEpochDay(), r.checkOut.toEpochDay())) return;
+            ensure(r.checkIn.toEpochDay(), r.checkOut.toEpochDay());
+            int at = (int) (r.checkIn.toEpochDay() - startDay) * TYPES + type;
+            cancellations[at]++;
+            if (r.paymentStatus == PayStatus.REFUNDED) refunds[at]++;
+            spread(r, type, -1);
+        }
+
+        /** Totals for the nights in [from, to), for one room type or all of them (null). */
+        synchronized Report report(LocalDate from, LocalDate to, RoomType type) {
+            Report rep = new Report(from, to, type);
+            long rooms = catalog.rooms(type).size();
+            rep.availableRoomNights = rooms * Math.max(0, to.toEpochDay() - from.toEpochDay());
+            long lo = Math.max(from.toEpochDay(), startDay), hi = Math.min(to.toEpochDay(), startDay + days);
+            int t0 = type == null ? 0 : type.ordinal(), t1 = type == null ? TYPES : type.ordinal() + 1;
+            long paise = 0;
+            for (long d = lo; d < hi; d++) {
+                int base = (int) (d - startDay) * TYPES;
+                for (int t = t0; t < t1; t++) {
+                    rep.roomNights += nights[base + t];
+                    paise += revenuePaise[base + t];
+                    rep.bookings += bookings[base + t];
+                    rep.cancellations += cancellations[base + t];
+                    rep.refunds += refunds[base + t];
+                }
+            }
+            rep.revenue = paise / 100.0;
+            return rep;
+        }
+
+        /** Describes each (night, type) cell where this and other disagree; empty when they match. */
+        List<String> diff(Analytics other) {
+            List<String> out = new ArrayList<>();
+            synchronized (this) {
+                synchronized (other) {
+                    long lo = Math.min(startDay, other.startDay), hi = Math.max(startDay + days, other.startDay + other.days);
+                    for (long d = lo; d < hi; d++) {
+                        for (int t = 0; t < TYPES; t++) {
+                            long[] a = cell(d, t), b = other.cell(d, t);
+                            if (!Arrays.equals(a, b)) {
+                                out.add(LocalDate.ofEpochDay(d) + " " + RoomType.values()[t] + ": " + Arrays.toString(a)
+                                        + " vs " + Arrays.toString(b));
+                            }
+                        }
+                    }
+                }
+            }
+            return out;
+        }
+
+        /** nights, revenue paise, bookings, cancellations, refunds for one cell; zeros outside the arrays. */
+        private long[] cell(long day, int type) {
+            if (day < startDay || day >= startDay + days) return new long[5];
+            int i = (int) (day - startDay) * TYPES + type;
+            return new long[] { nights[i], revenuePaise[i], bookings[i], cancellations[i], refunds[i] };
+        }
+
+        /** The cells from the first to the last that hold anything: start day, day count, then each cell's five values. */
+        private synchronized byte[] summary() {
+            int first = days, last = -1;
+            for (int i = 0; i < days * TYPES; i++) {
+                if (nights[i] != 0 || revenuePaise[i] != 0 || bookings[i] != 0 || cancellations[i] != 0 || refunds[i] != 0) {
+                    first = Math.min(first, i / TYPES);
+                    last = i / TYPES;
+                }
+            }
+            int n = Math.max(0, last - first + 1);
+            ByteBuffer b = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + n * TYPES * CELL_BYTES);
+            b.putLong(n == 0 ? FIRST_DAY : startDay + first).putInt(n);
+            for (int i = first * TYPES; i < (first + n) * TYPES; i++) {
+                b.putLong(nights[i]).putLong(revenuePaise[i]).putInt(bookings[i]).putInt(cancellations[i]).putInt(refunds[i]);
+            }
+            return b.array();
+        }
+
+        /** Adds totals written by summary(). */
+        private synchronized void add(byte[] summary) {
+            ByteBuffer b = ByteBuffer.wrap(summary);
+            long from = b.getLong();
+            int n = b.getInt();
+            if (n == 0) return;
+            ensure(from, from + n - 1);
+            for (int i = (int) (from - startDay) * TYPES, end = i + n * TYPES; i < end; i++) {
+                nights[i] += b.getLong();
+                revenuePaise[i] += b.getLong();
+                bookings[i] += b.getInt();
+                cancellations[i] += b.getInt();
+                refunds[i] += b.getInt();
+            }
+        }
+
+        /** What writeSummaries() left for the catalog's current room types, or nothing if the file is missing, damaged or stale. */
+        private static Map<String, byte[]> readSummaries(Path file, Catalog catalog) {
+            try {
+                if (!Files.exists(file)) return Map.of();
+                ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file));
+                if (b.getInt() != SUMMARIES_MAGIC || b.getLong() != typesStamp(catalog)) return Map.of();
+                Map<String, byte[]> summaries = new HashMap<>();
+                for (int months = b.getInt(); months > 0; months--) {
+                    byte[] key = new byte[b.getInt()], summary;
+                    b.get(key);
+                    b.get(summary = new byte[b.getInt()]);
+                    ByteBuffer s = ByteBuffer.wrap(summary);
+                    long from = s.getLong();
+                    int n = s.getInt();
+                    if (n < 0 || summary.length != s.position() + (long) n * TYPES * CELL_BYTES
+                            || n > 0 && (from < FIRST_DAY || from + n - 1 > END_DAY)) return Map.of();
+                    summaries.put(new String(key, StandardCharsets.UTF_8), summary);
+                }
+                return b.hasRemaining() ? Map.of() : summaries;
+            } catch (IOException | RuntimeException e) {
+                return Map.of(); // BufferUnderflowException and the like: the months are counted again instead
+            }
+        }
+
+        /** Replaces the sidecar with these months' summaries; a failure only costs the next startup a recount. */
+        private static void writeSummaries(Path file, Catalog catalog, Map<String, byte[]> summaries) {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)))) {
+                    out.writeInt(SUMMARIES_MAGIC);
+                    out.writeLong(typesStamp(catalog));
+                    out.writeInt(summaries.size());
+                    for (Map.Entry<String, byte[]> e : summaries.entrySet()) {
+                        byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(key.length);
+                        out.write(key);
+                        out.writeInt(e.getValue().length);
+                        out.write(e.getValue());
+                    }
+                    out.flush();
+                    ch.force(true);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Could not save archived analytics: " + e.getMessage());
+            }
+        }
+
+        /** Changes when any room is added, removed or retyped, which would change what a summary counted. */
+        private static long typesStamp(Catalog catalog) {
+            long h = 1;
+            for (Room r : catalog.all()) h = h * 31 + (long) r.id * TYPES + r.type.ordinal();
+            return h;
+        }
+
+        private static boolean counted(long checkIn, long checkOut) {
+            return checkIn >= FIRST_DAY && checkOut <= END_DAY;
+        }
+
+        private int typeOf(int roomId) {
+            Room room = catalog.byId(roomId);
+            return room == null ? -1 : room.type.ordinal();
+        }
+
+        private void spread(Reservation r, int type, int sign) {
+            spread(r.checkIn.toEpochDay(), r.checkOut.toEpochDay(), Math.round(r.totalAmount * 100), type, sign);
+        }
+
+        /** Adds (sign 1) or removes (sign -1) the stay's nights and revenue; leftover paise go to the first night. */
+        private void spread(long in, long out, long total, int type, int sign) {
+            long n = out - in;
+            if (n <= 0) return;
+            long each = total / n;
+            for (long night = 0; night < n; night++) {
+                int i = (int) (in + night - startDay) * TYPES + type;
+                nights[i] += sign;
+                revenuePaise[i] += sign * (night == 0 ? total - each * (n - 1) : each);
+            }
+        }
+
+        /**
+         * Grows the arrays, in either direction but never past [FIRST_DAY, END_DAY], to cover
+         * epoch days [from, to], which must lie inside it. All the new arrays are allocated before
+         * any field changes, so running out of memory here leaves the aggregates as they were.
+         */
+        private void ensure(long from, long to) {
+            if (from >= startDay && to < startDay + days) return;
+            long lo = Math.min(from, startDay), hi = Math.max(to + 1, startDay + days);
+            long newStart = Math.max(FIRST_DAY, from < startDay ? lo - (hi - lo) / 2 : startDay);
+            int newDays = (int) Math.min(END_DAY + 1 - newStart, Math.max(2L * days, hi - newStart + (hi - lo) / 2));
+            int shift = (int) (startDay - newStart) * TYPES;
+            long[] n = new long[newDays * TYPES], rev = new long[newDays * TYPES];
+            int[] b = new int[newDays * TYPES], c = new int[newDays * TYPES], f = new int[newDays * TYPES];
+            System.arraycopy(nights, 0, n, shift, nights.length);
+            System.arraycopy(revenuePaise, 0, rev, shift, revenuePaise.length);
+            System.arraycopy(bookings, 0, b, shift, bookings.length);
+            System.arraycopy(cancellations, 0, c, shift, cancellations.length);
+            System.arraycopy(refunds, 0, f, shift, refunds.length);
+            startDay = newStart;
+            days = newDays;
+            nights = n;
+            revenuePaise = rev;
+            bookings = b;
+            cancellations = c;
+            refunds = f;
+        }
+
+        private void allocate(int days) {
+            this.days = days;
+            nights = new long[days * TYPES];
+            revenuePaise = new long[days * TYPES];
+            bookings = new int[days * TYPES];
+            cancellations = new int[days * TYPES];
+            refunds = new int[days * TYPES];
+        }
+
+        /**
+         * analytics verify | analytics <from> <to> [type]: reports from a replay of the whole log,
+         * or checks that replay against a scan of what the store holds, archived months included.
+         */
+        static boolean run(String[] args, String resFile) {
+            Catalog catalog = new Catalog(ROOMS_FILE);
+            ReservationStore store = new ReservationStore(resFile, true);
+            try {
+                Map<Long, Reservation> finalStates = new HashMap<>();
+                long t0 = System.nanoTime();
+                Analytics replayed;
+                try {
+                    replayed = replay(catalog, store, finalStates);
+                } catch (IllegalStateException e) {
+                    System.out.println("Replay failed: " + e.getMessage());
+                    return false;
+                }
+                long replayMs = (System.nanoTime() - t0) / 1_000_000;
+                if (args[1].equals("verify")) {
+                    Analytics stored = new Analytics(catalog);
+                    store.forEachStayWithArchived(stored::count);
+                    List<String> diff = replayed.diff(stored);
+                    System.out.println("Replayed " + finalStates.size() + " reservations in " + replayMs + " ms; "
+                            + (diff.isEmpty() ? "aggregates match the full scan" : diff.size() + " cells differ from the full scan:"));
+                    for (String d : diff.subList(0, Math.min(20, diff.size()))) System.out.println("  " + d);
+                    return diff.isEmpty();
+                }
+                RoomType type = args.length > 3 && !args[3].startsWith("--") ? RoomType.valueOf(args[3].toUpperCase()) : null;
+                LocalDate from = LocalDate.parse(args[1]), to = LocalDate.parse(args[2]);
+                System.out.println(replayed.report(from, to, type));
+                int runs = 10_000;
+                long q = System.nanoTime();
+                for (int i = 0; i < runs; i++) replayed.report(from, to, type);
+                System.out.printf("(%.2f us per query over %d runs)%n", (System.nanoTime() - q) / 1e3 / runs, runs);
+                return true;
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Several hotels in one process: each subdirectory of the root is a property with its own
+     * rooms.csv and reservations.csv, served by its own Catalog, ReservationStore and
+     * OccupancyCalendar. A search fans out over the properties on a ForkJoinPool and merges the
+     * per-task results, already in price order, so its latency follows the core count rather than
+     * the number of properties. The room type is applied inside each property's calendar pass,
+     * which already covers every type in one sweep, so splitting by type would only repeat work.
+     * Journal fsyncs, snapshots and calendar rolls run on threads the properties share, so the
+     * thread count does not grow with the number of properties.
+     */
+    static class PropertyGroup implements Closeable {
+        private static final int LEAF_PROPERTIES = 8; // searched in one task before forking stops
+
+        static class Property {
+            final String name;
+            final Catalog catalog;
+            final ReservationStore store;
+            final OccupancyCalendar calendar;
+
+            Property(Path dir) {
+                this.name = dir.getFileName().toString();
+                this.catalog = new Catalog(dir.resolve(ROOMS_FILE).toString());
+                if (catalog.all().isEmpty()) catalog.saveAll(SEED_ROOMS);
+                this.store = new ReservationStore(dir.resolve(RES_FILE).toString());
+                this.calendar = new OccupancyCalendar(catalog, store, LocalDate.now(), OccupancyCalendar.DEFAULT_NIGHTS);
+                calendar.rollDaily();
+            }
+        }
+
+        static class Offer {
+            static final Comparator<Offer> BY_PRICE = Comparator.<Offer>comparingDouble(o -> o.room.pricePerNight)
+                    .thenComparing(o -> o.property).thenComparingInt(o -> o.room.id);
+
+            final String property;
+            final Room room;
+
+            Offer(String property, Room room) { this.property = property; this.room = room; }
+        }
+
+        private final List<Property> properties = new ArrayList<>();
+        private final Map<String, Property> byName = new HashMap<>();
+        private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        /** Opens every property directory under root, seeding rooms where a property has none. */
+        PropertyGroup(Path root) {
+            try (var dirs = Files.list(root)) {
+                for (Path dir : (Iterable<Path>) dirs.sorted()::iterator) {
+                    if (!Files.isDirectory(dir)) continue;
+                    Property p = new Property(dir);
+                    properties.add(p);
+                    byName.put(p.name, p);
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /** Makes sure root holds at least count properties, named p001, p002, ... */
+        static void create(Path root, int count) {
+            try {
+                for (int i = 1; i <= count; i++) Files.createDirectories(root.resolve(String.format("p%03d", i)));
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        List<Property> properties() { return Collections.unmodifiableList(properties); }
+
+        Property property(String name) { return byName.get(name); }
+
+        /** Free rooms of the type (any for null) across every property, cheapest first. */
+        List<Offer> search(LocalDate inDate, LocalDate outDate, RoomType type) {
+            long t0 = System.nanoTime();
+            List<Offer> offers = pool.invoke(new SearchTask(inDate, outDate, type, 0, properties.size()));
+            Metrics.SEARCH.since(t0);
+            return offers;
+        }
+
+        @Override public void close() {
+            pool.shutdown();
+            for (Property p : properties) p.store.close();
+        }
+
+        /** Searches properties [from, to), splitting the range in halves down to LEAF_PROPERTIES. */
+        private class SearchTask extends RecursiveTask<List<Offer>> {
+            private static final long serialVersionUID = 1L;
+
+            private final LocalDate inDate, outDate;
+            private final RoomType type;
+            private final int from, to;
+
+            SearchTask(LocalDate inDate, LocalDate outDate, RoomType type, int from, int to) {
+                this.inDate = inDate; this.outDate = outDate; this.type = type; this.from = from; this.to = to;
+            }
+
+            @Override protected List<Offer> compute() {
+                if (to - from <= LEAF_PROPERTIES) {
+                    List<Offer> out = new ArrayList<>();
+                    for (Property p : properties.subList(from, to)) {
+                        for (Room r : p.calendar.available(inDate, outDate, type)) out.add(new Offer(p.name, r));
+                    }
+                    out.sort(Offer.BY_PRICE);
+                    return out;
+                }
+                int mid = (from + to) >>> 1;
+                SearchTask left = new SearchTask(inDate, outDate, type, from, mid);
+                left.fork();
+                List<Offer> right = new SearchTask(inDate, outDate, type, mid, to).compute();
+                return merge(left.join(), right);
+            }
+        }
+
+        private static List<Offer> merge(List<Offer> a, List<Offer> b) {
+            List<Offer> out = new ArrayList<>(a.size() + b.size());
+            int i = 0, j = 0;
+            while (i < a.size() && j < b.size()) {
+                out.add(Offer.BY_PRICE.compare(a.get(i), b.get(j)) <= 0 ? a.get(i++) : b.get(j++));
+            }
+            while (i < a.size()) out.add(a.get(i++));
+            while (j < b.size()) out.add(b.get(j++));
+            return out;
+        }
+
+        /**
+         * properties <dir> <count> [checkIn checkOut [type]]: creates missing properties, runs the
+         * search and compares its latency with searching a single property.
+         */
+        static void run(Path root, int count, LocalDate inDate, LocalDate outDate, RoomType type) {
+            create(root, count);
+            try (PropertyGroup group = new PropertyGroup(root)) {
+                List<Offer> offers = group.search(inDate, outDate, type);
+                System.out.println(offers.size() + " rooms free across " + group.properties.size() + " properties; cheapest:");
+                for (Offer o : offers.subList(0, Math.min(10, offers.size()))) {
+                    System.out.printf("- %s #%d | %s | %s | %.2f/night%n", o.property, o.room.id, o.room.number, o.room.type, o.room.pricePerNight);
+                }
+                OccupancyCalendar one = group.properties.get(0).calendar;
+                long single = medianNanos(() -> one.findAvailable(inDate, outDate, type).size());
+                long all = medianNanos(() -> group.search(inDate, outDate, type).size());
+                System.out.printf("median search: one property %.1f us, %d properties %.1f us%n",
+                        single / 1e3, group.properties.size(), all / 1e3);
+            }
+        }
+
+        private static long medianNanos(LongSupplier op) {
+            long[] t = new long[2000];
+            for (int i = 0; i < t.length; i++) {
+                long t0 = System.nanoTime();
+                op.getAsLong();
+                t[i] = System.nanoTime() - t0;
+            }
+            Arrays.sort(t, t.length / 2, t.length); // first half is warm-up
+            return t[t.length * 3 / 4];
+        }
+    }
+
+    /**
+     * Append-only journal of reservation changes. Each event is written to the channel as soon as
+     * it happens, so a process crash loses nothing; fsync is batched, either every syncBatch events
+     * or every syncMillis by a background flusher, whichever comes first.
+     */
+    static class EventLog implements Closeable {
+        static final int DEFAULT_SYNC_BATCH = 32;
+        static final long DEFAULT_SYNC_MILLIS = 200;
+
+        /** One daemon thread runs the periodic fsync of every log in the process. */
+        private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "event-log-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+
+        private final Path path;
+        private FileChannel ch;
+        private final int syncBatch;
+        private final ScheduledFuture<?> flushing;
+        private int unsynced;
+
+        EventLog(Path path, int syncBatch, long syncMillis) {
+            this.path = path;
+            this.syncBatch = syncBatch;
+            try {
+                this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) { throw new RuntimeException(e); }
+            this.flushing = FLUSHER.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /** Feeds every complete line to apply and cuts off a torn last line left by a crash. */
+        synchronized long replay(Consumer<String> apply) {
+            try {
+                long[] count = { 0 };
+                int end = forEachLine(Files.readAllBytes(path), line -> { apply.accept(line); count[0]++; });
+                ch.truncate(end);
+                ch.position(end);
+                return count[0];
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /** Feeds every complete line of a log no one is writing to apply, leaving the file as it is. */
+        static void read(Path path, Consumer<String> apply) {
+            if (!Files.exists(path)) return;
+            try {
+                forEachLine(Files.readAllBytes(path), apply);
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /** Returns the offset just past the last complete line. */
+        private static int forEachLine(byte[] all, Consumer<String> apply) {
+            int lineStart = 0;
+            for (int i = 0; i < all.length; i++) {
+                if (all[i] != '\n') continue;
+                String line = new String(all, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                if (!line.isBlank()) apply.accept(line);
+                lineStart = i + 1;
+            }
+            return lineStart;
+        }
+
+        synchronized void append(String event) {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap((event + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buf.hasRemaining()) ch.write(buf);
+                if (++unsynced >= syncBatch) sync();
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /** Appends the events with one write and one fsync, so a batch costs a single group commit. */
+        synchronized void appendAll(List<String> events) {
+            StringBuilder sb = new StringBuilder(events.size() * 128);
+            for (String e : events) sb.append(e).append('\n');
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                while (buf.hasRemaining()) ch.write(buf);
+            } catch (IOException e) { throw new RuntimeException(e); }
+            unsynced += events.size();
+            sync();
+        }
+
+        synchronized void sync() {
+            if (unsynced == 0) return;
+            try {
+                ch.force(false);
+                unsynced = 0;
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /**
+         * Moves every event so far to `to`, appending when it still holds events from an earlier
+         * cut-over, and carries on in an empty log. Delete `to` once a snapshot covering it is durable.
+         */
+        synchronized void rotate(Path to) {
+            try {
+                ch.force(false);
+                unsynced = 0;
+                if (Files.exists(to)) {
+                    try (FileChannel old = FileChannel.open(to, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        for (long at = 0, size = ch.size(); at < size; ) at += ch.transferTo(at, size - at, old);
+                        old.force(false);
+                    }
+                    ch.truncate(0);
+                    ch.position(0);
+                    ch.force(true);
+                } else {
+                    ch.close();
+                    Files.move(path, to, StandardCopyOption.ATOMIC_MOVE);
+                    ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /** Drops every event; only call once a snapshot covering them is durable. */
+        synchronized void reset() {
+            try {
+                ch.truncate(0);
+                ch.position(0);
+                ch.force(true);
+                unsynced = 0;
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        @Override public synchronized void close() {
+            flushing.cancel(false);
+            sync();
+            try { ch.close(); } catch (IOException e) { throw new RuntimeException(e); }
+        }
+    }
+
+    /** Where ReservationStore persists its records; the store itself always works from memory. */
+    interface ReservationBackend {
+        /** Puts every persisted reservation into the table and restores its id sequence. */
+        void load(ReservationTable into);
+        void created(Reservation r);
+        /** r is the record as it stands after the cancellation. */
+        void cancelled(Reservation r);
+        /** Replaces everything persisted with exactly the table's records and sequence. */
+        void rewrite(ReservationTable all);
+        /**
+         * rewrite() in two parts: this runs under the backend monitor and the table's read lock,
+         * the returned rest after both are released, while changes keep arriving. The default
+         * does the whole rewrite up front.
+         */
+        default Runnable beginRewrite(ReservationTable all) {
+            rewrite(all);
+            return () -> { };
+        }
+        /** Whether a rewrite would pay off now; closing is true when the store is shutting down. */
+        boolean wantsRewrite(boolean closing);
+        void close();
+        /**
+         * Everything persisted, archived history included, read back without changing what is
+         * resident: the snapshot's records go to snapshot, then each change journaled since,
+         * as a JournalBackend event line, to journal. Call with no rewrite in progress.
+         */
+        void history(Consumer<Reservation> snapshot, Consumer<String> journal);
+
+        /** Persists a batch, all of it durable on return; backends override this to sync once. */
+        default void createdAll(List<Reservation> rs) { for (Reservation r : rs) created(r); }
+        default void cancelledAll(List<Reservation> rs) { for (Reservation r : rs) cancelled(r); }
+
+        /** Stays overlapping or checking in on epoch days before this may sit in archived storage that load() skipped. */
+        default long archivedUntil() { return Long.MIN_VALUE; }
+        /**
+         * Reads back the archived reservations overlapping [from, to), and those of the month a
+         * stay checking in on from is stored with, so the caller can hold them and write there again.
+         */
+        default List<Reservation> faultIn(LocalDate from, LocalDate to) { return List.of(); }
+        /** An archived reservation by id, or null; read-only. */
+        default Reservation fetchArchived(long id) { return null; }
+        /** Every archived reservation that is not resident; read-only. */
+        default void forEachArchived(Consumer<Reservation> sink) { }
+        /** A key per archived, non-resident month that changes whenever the month is archived again. */
+        default Map<YearMonth, String> archivedMonths() { return Map.of(); }
+        /** The reservations archived for month, if it is archived and not resident; read-only. */
+        default void forEachArchived(YearMonth month, Consumer<Reservation> sink) { }
+        /** A file beside the archive where a reader may keep what it derives from it; null if there is none or the open is read-only. */
+        default Path archiveSidecar(String name) { return null; }
+        /** Up to max archived, non-resident reservations matching f with ids above afterId, in id order; read-only. */
+        default List<Reservation> archivedAfter(ReservationFilter f, long afterId, int max) { return List.of(); }
+        /** Moves finished history out of the working set; returns the check-in months to evict. */
+        default Set<YearMonth> archive(LocalDate today) { return Set.of(); }
+
+        static ReservationBackend open(String file) { return open(file, false); }
+
+        /**
+         * Read-only opens change nothing on disk, not even a torn journal tail, so they are safe
+         * against the files of a running server; the store refuses writes through them.
+         */
+        static ReservationBackend open(String file, boolean readOnly) {
+            if (file.endsWith(".bin")) return new MappedReservationFile(file, readOnly);
+            if (file.endsWith(".seg")) return new SegmentedBackend(file, readOnly);
+            return new JournalBackend(file, readOnly);
+        }
+
+        /** Copies every reservation from one file format to the other, replacing the target's contents. */
+        static void convert(String from, String to) {
+            ReservationTable all = new ReservationTable();
+            ReservationBackend src = open(from);
+            src.load(all);
+            for (Reservation r : src.faultIn(LocalDate.MIN, LocalDate.MAX)) all.put(r);
+            src.close();
+            ReservationBackend dst = open(to);
+            dst.rewrite(all);
+            dst.close();
+            System.out.println("Copied " + all.size() + " reservations from " + from + " to " + to);
+        }
+    }
+
+    /**
+     * The CSV file is the last compacted snapshot and file + ".log" journals every
+     * create/cancel/refund since then; loading reads the snapshot and replays the journal. Every
+     * COMPACT_EVERY events the journal is cut over to file + ".log.old" and a fresh snapshot is
+     * written from a copy in the background, then the cut-over events are dropped. Each snapshot
+     * is also written as a binary image, file + ".img" in the MappedReservationFile layout, in id
+     * order. Loading maps the image and hands it to the table as it is, to be decoded a record at
+     * a time as they are used, and replays only the journal tail; closing writes nothing more, as
+     * the journal already holds every change.
+     */
+    static class JournalBackend implements ReservationBackend {
+        static final int COMPACT_EVERY = 10_000;
+
+        private final String file;
+        private final EventLog log; // null when read-only
+        // create/cancel events in the journal since the snapshot, replayed ones included so the
+        // journal a restart replays stays bounded; only a process that journaled something itself
+        // compacts, so opening and closing the store never does
+        private long changes;
+        private boolean journaled;
+
+        JournalBackend(String file) { this(file, false); }
+
+        JournalBackend(String file, boolean readOnly) {
+            this.file = file;
+            this.log = readOnly ? null : new EventLog(Path.of(file + ".log"), EventLog.DEFAULT_SYNC_BATCH, EventLog.DEFAULT_SYNC_MILLIS);
+        }
+
+        @Override public void load(ReservationTable into) {
+            readSnapshot(into);
+            Consumer<String> replay = event -> {
+                if (apply(event, into)) changes++;
+            };
+            // events cut over by a snapshot that never finished; harmless to replay if it did
+            EventLog.read(cutOver(), replay);
+            if (log == null) EventLog.read(Path.of(file + ".log"), replay);
+            else log.replay(replay);
+        }
+
+        @Override public void history(Consumer<Reservation> snapshot, Consumer<String> journal) {
+            ReservationTable snap = new ReservationTable();
+            readSnapshot(snap);
+            for (Reservation r : snap.inOrder()) snapshot.accept(r);
+            EventLog.read(cutOver(), journal);
+            EventLog.read(Path.of(file + ".log"), journal);
+        }
+
+        /** The snapshot alone, from the image when there is one. */
+        private void readSnapshot(ReservationTable into) {
+            try {
+                if (Files.exists(Path.of(file + ".img"))) {
+                    MappedReservationFile image = new MappedReservationFile(file + ".img", true);
+                    into.attach(image);
+                    image.close(); // only the channels; the mapping stays readable
+                } else if (Files.exists(Path.of(file))) {
+                    List<Reservation> rs = new ArrayList<>();
+                    for (String line : Files.readAllLines(Path.of(file))) {
+                        if (line.isBlank()) continue;
+                        rs.add(Reservation.fromCsv(line));
+                    }
+                    into.putAll(rs.toArray(new Reservation[0]));
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        @Override public void created(Reservation r) {
+            log.append("CREATE," + r.toCsv());
+            changes++;
+            journaled = true;
+        }
+
+        @Override public void cancelled(Reservation r) {
+            changes++;
+            journaled = true;
+            log.append(cancelEvent(r));
+        }
+
+        @Override public void createdAll(List<Reservation> rs) {
+            List<String> events = new ArrayList<>(rs.size());
+            for (Reservation r : rs) events.add("CREATE," + r.toCsv());
+            log.appendAll(events);
+            changes += rs.size();
+            journaled = true;
+        }
+
+        @Override public void cancelledAll(List<Reservation> rs) {
+            List<String> events = new ArrayList<>(rs.size());
+            for (Reservation r : rs) events.add(cancelEvent(r));
+            log.appendAll(events);
+            changes += rs.size();
+            journaled = true;
+        }
+
+        static String cancelEvent(Reservation r) {
+            return r.refundTxnId != null
+                    ? "REFUND," + Reservation.joinCsv(new String[] { String.valueOf(r.id), r.refundTxnId })
+                    : "CANCEL," + r.id;
+        }
+
+        @Override public void rewrite(ReservationTable all) { beginRewrite(all).run(); }
+
+        /**
+         * Copies the table, cuts the journal over to file.log.old and returns the snapshot
+         * write, which needs no lock: changes made while it runs go to the fresh journal.
+         */
+        @Override public Runnable beginRewrite(ReservationTable all) {
+            ReservationTable records = all.copy();
+            log.rotate(cutOver());
+            log.append("SEQ," + records.lastId());
+            changes = 0;
+            return () -> writeSnapshot(records);
+        }
+
+        /** Writes a new snapshot next to the old one, swaps it in atomically, then drops the cut-over events. */
+        private void writeSnapshot(ReservationTable records) {
+            // the old image goes first, so any image on disk matches the CSV snapshot
+            deleteImage(file + ".img");
+            Path snap = Path.of(file), tmp = Path.of(file + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 BufferedWriter w = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8))) {
+                for (Reservation r : records.inOrder()) {
+                    w.write(r.toCsv()); w.newLine();
+                }
+                w.flush();
+                ch.force(true);
+            } catch (IOException e) { throw new RuntimeException(e); }
+            try {
+                Files.move(tmp, snap, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // a crash before this point just replays the cut-over events over a snapshot that already has them
+                Files.deleteIfExists(cutOver());
+            } catch (IOException e) { throw new RuntimeException(e); }
+            writeImage(records);
+        }
+
+        private Path cutOver() { return Path.of(file + ".log.old"); }
+
+        /** Closing compacts no sooner than running does: the journal tail is already durable. */
+        @Override public boolean wantsRewrite(boolean closing) {
+            return journaled && changes >= COMPACT_EVERY;
+        }
+
+        /** Builds the image under a temporary name and renames it into place; without one, load parses the CSV. */
+        private void writeImage(ReservationTable all) {
+            String tmp = file + ".img.tmp";
+            try {
+                deleteImage(tmp);
+                MappedReservationFile image = new MappedReservationFile(tmp);
+                image.rewrite(all);
+                image.writeRoomIndex();
+                image.close();
+                Files.move(Path.of(tmp + ".idx"), Path.of(file + ".img.idx"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(Path.of(tmp + ".str"), Path.of(file + ".img.str"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(Path.of(tmp), Path.of(file + ".img"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Snapshot image not written: " + e.getMessage());
+                deleteImage(file + ".img");
+            }
+        }
+
+        private static void deleteImage(String image) {
+            try {
+                Files.deleteIfExists(Path.of(image));
+                Files.deleteIfExists(Path.of(image + ".str"));
+                Files.deleteIfExists(Path.of(image + ".idx"));
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        @Override public void close() {
+            if (log != null) log.close();
+        }
+
+        /** Applies one journal line; true if it changed a reservation rather than bookkeeping. */
+        private static boolean apply(String event, ReservationTable into) {
+            int comma = event.indexOf(',');
+            String op = event.substring(0, comma), body = event.substring(comma + 1);
+            switch (op) {
+                case "CREATE": into.put(Reservation.fromCsv(body)); break;
+                case "CANCEL": {
+                    Reservation r = into.get(Long.parseLong(body));
+                    if (r != null) into.put(r.cancelled(null));
+                    break;
+                }
+                case "REFUND": {
+                    String[] p = Reservation.splitCsv(body);
+                    Reservation r = into.get(Long.parseLong(p[0]));
+                    if (r != null) into.put(r.cancelled(p[1]));
+                    break;
+                }
+                case "SEQ": into.advanceTo(Long.parseLong(body)); return false;
+                default: throw new IllegalStateException("Unknown journal event: " + op);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reservations partitioned by check-in month into dir/YYYY-MM.csv segments, with one journal
+     * (dir/journal.log) for changes since the last compaction and dir/segments.idx recording each
+     * segment's id and date range. Compaction rewrites only the segments that changed. Once every
+     * stay in a past month has checked out for ARCHIVE_AFTER_DAYS, archive() gzips the segment to
+     * YYYY-MM.csv.gz and it is no longer loaded, so memory and startup are bounded by the booking
+     * horizon rather than the whole history; faultIn() and fetchArchived() open only the archived
+     * segments a date range or id falls in.
+     */
+    static class SegmentedBackend implements ReservationBackend {
+        static final int ARCHIVE_AFTER_DAYS = 31;
+
+        /** Index entry for one month; resident and dirty are never persisted. */
+        private static class Segment {
+            final YearMonth month;
+            boolean archived, resident, dirty;
+            int count;
+            long minId = Long.MAX_VALUE, maxId = Long.MIN_VALUE, maxCheckOut = Long.MIN_VALUE; // checkOut as epoch day
+
+            Segment(YearMonth month) { this.month = month; }
+
+            void add(Reservation r) {
+                count++;
+                minId = Math.min(minId, r.id);
+                maxId = Math.max(maxId, r.id);
+                maxCheckOut = Math.max(maxCheckOut, r.checkOut.toEpochDay());
+            }
+
+            boolean overlaps(LocalDate from, LocalDate to) {
+                return month.atDay(1).isBefore(to) && maxCheckOut > from.toEpochDay();
+            }
+        }
+
+        private final Path dir;
+        private final EventLog log;
+        private final TreeMap<YearMonth, Segment> segments = new TreeMap<>();
+        private volatile long archivedUntil = Long.MIN_VALUE;
+        private long lastId;
+        private long changes; // journaled by this process, as in JournalBackend
+
+        SegmentedBackend(String dir) { this(dir, false); }
+
+        SegmentedBackend(String dir, boolean readOnly) {
+            this.dir = Path.of(dir);
+            if (readOnly) {
+                this.log = null;
+            } else {
+                try {
+                    Files.createDirectories(this.dir);
+                } catch (IOException e) { throw new RuntimeException(e); }
+                this.log = new EventLog(this.dir.resolve("journal.log"), EventLog.DEFAULT_SYNC_BATCH, EventLog.DEFAULT_SYNC_MILLIS);
+            }
+            readIndex();
+        }
+
+        @Override public void load(ReservationTable into) {
+            into.advanceTo(lastId);
+            List<Reservation> rs = new ArrayList<>();
+            for (Segment s : segments.values()) {
+                if (!s.archived) readSegment(s, rs::add);
+            }
+            into.putAll(rs.toArray(new Reservation[0])); // months interleave ids, so this sorts once
+            Consumer<String> replay = event -> {
+                long id = prepare(event, into);
+                if (JournalBackend.apply(event, into)) touch(into.get(id));
+            };
+            if (log == null) EventLog.read(dir.resolve("journal.log"), replay);
+            else log.replay(replay);
+            updateArchivedUntil();
+        }
+
+        @Override public long archivedUntil() { return archivedUntil; }
+
+        @Override public List<Reservation> faultIn(LocalDate from, LocalDate to) {
+            List<Reservation> out = new ArrayList<>();
+            for (Segment s : segments.values()) {
+                if (s.archived && !s.resident && (s.overlaps(from, to) || s.month.equals(YearMonth.from(from)))) {
+                    readSegment(s, out::add);
+                    s.resident = true;
+                }
+            }
+            updateArchivedUntil();
+            return out;
+        }
+
+        @Override public void forEachArchived(Consumer<Reservation> sink) {
+            for (Segment s : segments.values()) {
+                if (s.archived && !s.resident) readSegment(s, sink);
+            }
+        }
+
+        /** Keys are the month, its count and the size and modification time of its .csv.gz. */
+        @Override public Map<YearMonth, String> archivedMonths() {
+            Map<YearMonth, String> keys = new TreeMap<>();
+            try {
+                for (Segment s : segments.values()) {
+                    if (!s.archived || s.resident) continue;
+                    Path gz = dir.resolve(s.month + ".csv.gz");
+                    keys.put(s.month, s.month + "," + s.count + "," + Files.size(gz) + "," + Files.getLastModifiedTime(gz).toMillis());
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+            return keys;
+        }
+
+        @Override public void forEachArchived(YearMonth month, Consumer<Reservation> sink) {
+            Segment s = segments.get(month);
+            if (s != null && s.archived && !s.resident) readSegment(s, sink);
+        }
+
+        @Override public Path archiveSidecar(String name) { return log == null ? null : dir.resolve(name); }
+
+        /**
+         * Opens the candidate segments in minId order and stops at the first whose ids all lie
+         * beyond the max lowest found so far, so paging through the archive reads each segment
+         * about as often as its id range spans pages.
+         */
+        @Override public List<Reservation> archivedAfter(ReservationFilter f, long afterId, int max) {
+            LocalDate from = f.from == null ? LocalDate.MIN : f.from, to = f.to == null ? LocalDate.MAX : f.to;
+            List<Segment> candidates = new ArrayList<>();
+            for (Segment s : segments.values()) {
+                if (s.archived && !s.resident && s.maxId > afterId && s.overlaps(from, to)) candidates.add(s);
+            }
+            candidates.sort(Comparator.comparingLong(s -> s.minId));
+            // the max lowest ids seen, highest on top
+            PriorityQueue<Reservation> lowest = new PriorityQueue<>(Comparator.comparingLong((Reservation r) -> r.id).reversed());
+            for (Segment s : candidates) {
+                if (lowest.size() == max && s.minId > lowest.peek().id) break;
+                readSegment(s, r -> {
+                    if (r.id <= afterId || !f.matches(r)) return;
+                    if (lowest.size() < max) lowest.add(r);
+                    else if (r.id < lowest.peek().id) { lowest.poll(); lowest.add(r); }
+                });
+            }
+            List<Reservation> out = new ArrayList<>(lowest);
+            out.sort(Comparator.comparingLong(r -> r.id));
+            return out;
+        }
+
+        /** Segment files as of the last compaction, then the journal of changes since. */
+        @Override public void history(Consumer<Reservation> snapshot, Consumer<String> journal) {
+            for (Segment s : segments.values()) {
+                // a month first booked since the last compaction exists only in the journal
+                if (Files.exists(dir.resolve(s.month + (s.archived ? ".csv.gz" : ".csv")))) readSegment(s, snapshot);
+            }
+            EventLog.read(dir.resolve("journal.log"), journal);
+        }
+
+        @Override public Reservation fetchArchived(long id) {
+            for (Segment s : segments.values()) {
+                if (!s.archived || s.resident || id < s.minId || id > s.maxId) continue;
+                String prefix = id + ",";
+                try (BufferedReader r = reader(s)) {
+                    for (String line; (line = r.readLine()) != null; ) {
+                        if (line.startsWith(prefix)) return Reservation.fromCsv(line);
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+            return null;
+        }
+
+        @Override public void created(Reservation r) {
+            Segment s = segmentFor(r);
+            log.append("CREATE," + r.toCsv());
+            changes++;
+            s.add(r);
+            s.dirty = true;
+        }
+
+        @Override public void cancelled(Reservation r) {
+            Segment s = segmentFor(r);
+            changes++;
+            log.append(JournalBackend.cancelEvent(r));
+            s.dirty = true;
+        }
+
+        @Override public void createdAll(List<Reservation> rs) {
+            List<String> events = new ArrayList<>(rs.size());
+            for (Reservation r : rs) {
+                segmentFor(r); // refuse the whole batch before anything is written
+                events.add("CREATE," + r.toCsv());
+            }
+            log.appendAll(events);
+            changes += rs.size();
+            for (Reservation r : rs) {
+                Segment s = segmentFor(r);
+                s.add(r);
+                s.dirty = true;
+            }
+        }
+
+        @Override public void cancelledAll(List<Reservation> rs) {
+            List<String> events = new ArrayList<>(rs.size());
+            for (Reservation r : rs) {
+                segmentFor(r);
+                events.add(JournalBackend.cancelEvent(r));
+            }
+            log.appendAll(events);
+            changes += rs.size();
+            for (Reservation r : rs) segmentFor(r).dirty = true;
+        }
+
+        /**
+         * Rewrites each changed segment (and any month the index has not seen yet) from the table
+         * in a single pass, then the index, then empties the journal.
+         */
+        @Override public void rewrite(ReservationTable all) {
+            Map<YearMonth, BufferedWriter> writers = new HashMap<>();
+            Map<YearMonth, FileChannel> channels = new HashMap<>();
+            try {
+                for (Segment s : segments.values()) {
+                    if (s.dirty) reset(s);
+                }
+                for (Reservation r : all.values()) {
+                    YearMonth m = YearMonth.from(r.checkIn);
+                    Segment s = segments.get(m);
+                    if (s == null) {
+                        s = new Segment(m);
+                        s.dirty = true;
+                        segments.put(m, s);
+                    }
+                    if (!s.dirty) continue;
+                    BufferedWriter w = writers.get(m);
+                    if (w == null) {
+                        FileChannel ch = FileChannel.open(dir.resolve(m + ".csv.tmp"), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        channels.put(m, ch);
+                        w = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8));
+                        writers.put(m, w);
+                    }
+                    w.write(r.toCsv()); w.newLine();
+                    s.add(r);
+                }
+                for (Map.Entry<YearMonth, BufferedWriter> e : writers.entrySet()) {
+                    e.getValue().flush();
+                    channels.get(e.getKey()).force(true);
+                    e.getValue().close();
+                    Files.move(dir.resolve(e.getKey() + ".csv.tmp"), dir.resolve(e.getKey() + ".csv"),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                for (Segment s : segments.values()) {
+                    if (!s.dirty) continue;
+                    if (s.archived) {
+                        // a change to a faulted-in month brings it back into the working set
+                        Files.deleteIfExists(dir.resolve(s.month + ".csv.gz"));
+                        s.archived = false;
+                    }
+                    s.dirty = false;
+                }
+                lastId = all.lastId();
+                writeIndex();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                for (BufferedWriter w : writers.values()) {
+                    try { w.close(); } catch (IOException ignored) { }
+                }
+            }
+            log.reset();
+            log.append("SEQ," + all.lastId());
+            changes = 0;
+            updateArchivedUntil();
+        }
+
+        @Override public boolean wantsRewrite(boolean closing) {
+            return closing ? changes > 0 : changes >= JournalBackend.COMPACT_EVERY;
+        }
+
+        /**
+         * Gzips every clean past segment whose stays all checked out ARCHIVE_AFTER_DAYS before
+         * today, and drops faulted-in archived segments again; returns the months the caller
+         * should evict from memory.
+         */
+        @Override public Set<YearMonth> archive(LocalDate today) {
+            Set<YearMonth> evict = new HashSet<>();
+            long cutoff = today.minusDays(ARCHIVE_AFTER_DAYS).toEpochDay();
+            YearMonth current = YearMonth.from(today);
+            try {
+                for (Segment s : segments.values()) {
+                    if (s.dirty || !s.month.isBefore(current) || s.maxCheckOut >= cutoff) continue;
+                    if (s.archived) {
+                        if (s.resident) { s.resident = false; evict.add(s.month); }
+                        continue;
+                    }
+                    Path plain = dir.resolve(s.month + ".csv"), gz = dir.resolve(s.month + ".csv.gz"),
+                            tmp = dir.resolve(s.month + ".csv.gz.tmp");
+                    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+                        Files.copy(plain, out);
+                    }
+                    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        ch.force(true);
+                    }
+                    Files.move(tmp, gz, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    s.archived = true;
+                    s.resident = false;
+                    evict.add(s.month);
+                }
+                if (!evict.isEmpty()) writeIndex();
+                // the index now names the .gz copies, so the plain files can go
+                for (YearMonth m : evict) Files.deleteIfExists(dir.resolve(m + ".csv"));
+            } catch (IOException e) { throw new RuntimeException(e); }
+            updateArchivedUntil();
+            return evict;
+        }
+
+        @Override public void close() {
+            if (log != null) log.close();
+        }
+
+        /** The segment r belongs in; refuses changes to archived months that are not in memory. */
+        private Segment segmentFor(Reservation r) {
+            YearMonth m = YearMonth.from(r.checkIn);
+            Segment s = segments.computeIfAbsent(m, Segment::new);
+            if (s.archived && !s.resident) throw new IllegalStateException("Reservations for " + m + " are archived");
+            return s;
+        }
+
+        /**
+         * Faults in the archived segment a journal event refers to, so replaying it over the
+         * table sees the record; returns the event's reservation id, or 0 for bookkeeping.
+         */
+        private long prepare(String event, ReservationTable into) {
+            int comma = event.indexOf(',');
+            String op = event.substring(0, comma), body = event.substring(comma + 1);
+            if (op.equals("CREATE")) {
+                Reservation r = Reservation.fromCsv(body);
+                Segment s = segments.get(YearMonth.from(r.checkIn));
+                if (s != null && s.archived && !s.resident) { readSegment(s, into::put); s.resident = true; }
+                return r.id;
+            }
+            long id;
+            if (op.equals("CANCEL")) id = Long.parseLong(body);
+            else if (op.equals("REFUND")) id = Long.parseLong(Reservation.splitCsv(body)[0]);
+            else return 0;
+            if (into.get(id) == null) {
+                for (Segment s : segments.values()) {
+                    if (s.archived && !s.resident && id >= s.minId && id <= s.maxId) {
+                        readSegment(s, into::put);
+                        s.resident = true;
+                    }
+                }
+            }
+            return id;
+        }
+
+        /** Marks the month of a replayed change dirty, since only the journal has it. */
+        private void touch(Reservation r) {
+            if (r == null) return;
+            Segment s = segments.computeIfAbsent(YearMonth.from(r.checkIn), Segment::new);
+            s.add(r);
+            s.dirty = true;
+        }
+
+        private void reset(Segment s) {
+            s.count = 0;
+            s.minId = Long.MAX_VALUE; s.maxId = Long.MIN_VALUE; s.maxCheckOut = Long.MIN_VALUE;
+        }
+
+        private void updateArchivedUntil() {
+            long until = Long.MIN_VALUE;
+            for (Segment s : segments.values()) {
+                if (!s.archived || s.resident) continue;
+                // a new stay can check in later in the month than any archived one checked out
+                until = Math.max(until, Math.max(s.maxCheckOut, s.month.plusMonths(1).atDay(1).toEpochDay()));
+            }
+            archivedUntil = until;
+        }
+
+        private BufferedReader reader(Segment s) throws IOException {
+            if (s.archived) {
+                return new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(Files.newInputStream(dir.resolve(s.month + ".csv.gz"))), StandardCharsets.UTF_8));
+            }
+            return Files.newBufferedReader(dir.resolve(s.month + ".csv"));
+        }
+
+        private void readSegment(Segment s, Consumer<Reservation> sink) {
+            try (BufferedReader r = reader(s)) {
+                for (String line; (line = r.readLine()) != null; ) {
+                    if (!line.isBlank()) sink.accept(Reservation.fromCsv(line));
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        // segments.idx: "SEQ,<lastId>" then one "YYYY-MM,archived,count,minId,maxId,maxCheckOut" line per month
+        private void readIndex() {
+            Path idx = dir.resolve("segments.idx");
+            try {
+                if (!Files.exists(idx)) return;
+                for (String line : Files.readAllLines(idx)) {
+                    if (line.isBlank()) continue;
+                    String[] p = line.split(",");
+                    if (p[0].equals("SEQ")) { lastId = Long.parseLong(p[1]); continue; }
+                    Segment s = new Segment(YearMonth.parse(p[0]));
+                    s.archived = p[1].equals("1");
+                    s.count = Integer.parseInt(p[2]);
+                    s.minId = Long.parseLong(p[3]);
+                    s.maxId = Long.parseLong(p[4]);
+                    s.maxCheckOut = Long.parseLong(p[5]);
+                    segments.put(s.month, s);
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        private void writeIndex() throws IOException {
+            Path idx = dir.resolve("segments.idx"), tmp = dir.resolve("segments.idx.tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 BufferedWriter w = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8))) {
+                w.write("SEQ," + lastId); w.newLine();
+                for (Segment s : segments.values()) {
+                    w.write(s.month + "," + (s.archived ? 1 : 0) + "," + s.count + "," + s.minId + "," + s.maxId
+                            + "," + s.maxCheckOut);
+                    w.newLine();
+                }
+                w.flush();
+                ch.force(true);
+            }
+            Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Fixed-width binary records in a memory-mapped file, so one record can be read or patched in
+     * place by id. Dates are epoch days, amounts are paise and created-at is UTC epoch seconds plus
+     * nanos; guest names and txn ids live in a companion file + ".str" string area and records
+     * hold their offsets (-1 for null).
+     */
+    static class MappedReservationFile implements ReservationBackend {
+        private static final int MAGIC = 0x48525331; // "HRS1"
+        private static final int ROOM_INDEX_MAGIC = 0x48524931; // "HRI1"
+        private static final int READ_CHUNK = 64 * 1024;
+        private static final int HEADER = 64, RECORD = 64, STR_HEADER = 8;
+        // header fields
+        private static final int H_MAGIC = 0, H_COUNT = 4, H_LAST_ID = 8;
+        // record fields
+        private static final int ID = 0, AMOUNT = 8, CREATED_SEC = 16, ROOM = 24, CHECK_IN = 28, CHECK_OUT = 32,
+                CREATED_NANO = 36, GUEST = 40, PAY_TXN = 44, REFUND_TXN = 48, PAY_STATUS = 52, RES_STATUS = 53;
+        private static final PayStatus[] PAY = PayStatus.values();
+        private static final ResStatus[] RES = ResStatus.values();
+
+        private final String file;
+        private final FileChannel recCh, strCh;
+        private MappedByteBuffer rec, str;
+        private int count, strUsed;
+        private final LongIntMap slotById = new LongIntMap();
+
+        MappedReservationFile(String file) { this(file, false); }
+
+        /** Read-only maps the files as they are and never creates or grows them; a missing file reads as empty. */
+        MappedReservationFile(String file, boolean readOnly) {
+            this.file = file;
+            try {
+                if (readOnly && !Files.exists(Path.of(file))) {
+                    recCh = strCh = null;
+                    return;
+                }
+                if (readOnly) {
+                    recCh = FileChannel.open(Path.of(file), StandardOpenOption.READ);
+                    strCh = FileChannel.open(Path.of(file + ".str"), StandardOpenOption.READ);
+                    rec = recCh.map(FileChannel.MapMode.READ_ONLY, 0, recCh.size());
+                    str = strCh.map(FileChannel.MapMode.READ_ONLY, 0, strCh.size());
+                    if (rec.capacity() < HEADER || rec.getInt(H_MAGIC) != MAGIC) {
+                        throw new IllegalStateException(file + " is not a reservation file");
+                    }
+                    count = rec.getInt(H_COUNT);
+                    strUsed = str.getInt(0);
+                    return;
+                }
+                recCh = FileChannel.open(Path.of(file), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                strCh = FileChannel.open(Path.of(file + ".str"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                boolean fresh = recCh.size() == 0;
+                rec = recCh.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(recCh.size(), HEADER + 1024L * RECORD));
+                str = strCh.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(strCh.size(), STR_HEADER + 64L * 1024));
+                if (fresh) {
+                    rec.putInt(H_MAGIC, MAGIC).putInt(H_COUNT, 0);
+                    str.putInt(0, STR_HEADER);
+                } else if (rec.getInt(H_MAGIC) != MAGIC) {
+                    throw new IllegalStateException(file + " is not a reservation file");
+                }
+                count = rec.getInt(H_COUNT);
+                strUsed = str.getInt(0);
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        @Override public void load(ReservationTable into) {
+            Reservation[] rs = new Reservation[count];
+            for (int slot = 0; slot < count; slot++) {
+                rs[slot] = read(slot);
+                slotById.put(rs[slot].id, slot);
+            }
+            into.putAll(rs);
+            into.advanceTo(lastId());
+        }
+
+        /** The file is updated in place, so it is all snapshot and there is no journal. */
+        @Override public void history(Consumer<Reservation> snapshot, Consumer<String> journal) {
+            for (int slot = 0; slot < count; slot++) snapshot.accept(read(slot));
+        }
+
+        /** Decodes every record, in parallel chunks straight off the mapping; for images a table cannot attach. */
+        Reservation[] readAll() {
+            Reservation[] out = new Reservation[count];
+            IntStream.range(0, (count + READ_CHUNK - 1) / READ_CHUNK).parallel().forEach(chunk -> {
+                for (int slot = chunk * READ_CHUNK, end = Math.min(count, slot + READ_CHUNK); slot < end; slot++) {
+                    out[slot] = read(slot);
+                }
+            });
+            return out;
+        }
+
+        long lastId() { return rec == null ? 0 : rec.getLong(H_LAST_ID); }
+
+        int count() { return count; }
+
+        /**
+         * Writes file + ".idx": the ids of the records that are not cancelled, grouped by room,
+         * for an availability index to load as they are instead of reading every record. Only
+         * for a file in id order that no longer changes, such as a snapshot image.
+         */
+        void writeRoomIndex() {
+            Map<Integer, int[]> counts = new HashMap<>();
+            Stay s = new Stay();
+            for (int slot = 0; slot < count; slot++) {
+                stay(slot, s);
+                if (slot > 0 && s.id <= idAt(slot - 1)) throw new IllegalStateException(file + " is not in id order");
+                if (s.status != ResStatus.CANCELLED) counts.computeIfAbsent(s.roomId, k -> new int[1])[0]++;
+            }
+            Map<Integer, long[]> ids = new HashMap<>();
+            counts.forEach((room, n) -> ids.put(room, new long[n[0]]));
+            counts.values().forEach(n -> n[0] = 0);
+            for (int slot = 0; slot < count; slot++) {
+                stay(slot, s);
+                if (s.status != ResStatus.CANCELLED) ids.get(s.roomId)[counts.get(s.roomId)[0]++] = s.id;
+            }
+            try (FileChannel ch = FileChannel.open(Path.of(file + ".idx"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)))) {
+                out.writeInt(ROOM_INDEX_MAGIC);
+                out.writeInt(count);
+                out.writeLong(lastId());
+                out.writeInt(ids.size());
+                for (Map.Entry<Integer, long[]> e : ids.entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.writeInt(e.getValue().length);
+                    for (long id : e.getValue()) out.writeLong(id);
+                }
+                out.flush();
+                ch.force(true);
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /** What writeRoomIndex() wrote, or null if it is missing, damaged or was written for other contents. */
+        Map<Integer, long[]> readRoomIndex() {
+            try {
+                Path p = Path.of(file + ".idx");
+                if (!Files.exists(p)) return null;
+                ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(p));
+                if (b.getInt() != ROOM_INDEX_MAGIC || b.getInt() != count || b.getLong() != lastId()) return null;
+                Map<Integer, long[]> ids = new HashMap<>();
+                for (int rooms = b.getInt(); rooms > 0; rooms--) {
+                    int room = b.getInt();
+                    long[] roomIds = new long[b.getInt()];
+                    b.asLongBuffer().get(roomIds);
+                    b.position(b.position() + roomIds.length * Long.BYTES);
+                    ids.put(room, roomIds);
+                }
+                return b.hasRemaining() ? null : ids;
+            } catch (IOException | RuntimeException e) {
+                return null; // BufferUnderflowException and the like: rebuilt from the records instead
+            }
+        }
+
+        long idAt(int slot) { return rec.getLong(HEADER + slot * RECORD + ID); }
+
+        /** Fills s from the record in slot, reading only fixed-width fields. */
+        void stay(int slot, Stay s) {
+            int at = HEADER + slot * RECORD;
+            s.id = rec.getLong(at + ID);
+            s.roomId = rec.getInt(at + ROOM);
+            s.checkIn = rec.getInt(at + CHECK_IN);
+            s.checkOut = rec.getInt(at + CHECK_OUT);
+            s.amountPaise = rec.getLong(at + AMOUNT);
+            s.payment = PAY[rec.get(at + PAY_STATUS)];
+            s.status = RES[rec.get(at + RES_STATUS)];
+        }
+
+        /** Decodes a single record without touching the rest of the file. */
+        Reservation read(long id) {
+            int slot = slotById.get(id);
+            return slot < 0 ? null : read(slot);
+        }
+
+        @Override public void created(Reservation r) {
+            createdAll(List.of(r));
+        }
+
+        /** Writes the records, forces them and their strings once, then publishes them via the header count. */
+        @Override public void createdAll(List<Reservation> rs) {
+            if (rs.isEmpty()) return;
+            int first = count;
+            ensureRecords(first + rs.size());
+            long lastId = rec.getLong(H_LAST_ID);
+            for (int i = 0; i < rs.size(); i++) {
+                Reservation r = rs.get(i);
+                put(first + i, r);
+                lastId = Math.max(lastId, r.id);
+            }
+            // strings and the record bodies reach disk before the count that makes them visible
+            str.force();
+            rec.force(HEADER + first * RECORD, rs.size() * RECORD);
+            count += rs.size();
+            rec.putInt(H_COUNT, count);
+            rec.putLong(H_LAST_ID, lastId);
+            rec.force(0, HEADER);
+            for (int i = 0; i < rs.size(); i++) slotById.put(rs.get(i).id, first + i);
+        }
+
+        private void put(int slot, Reservation r) {
+            int at = HEADER + slot * RECORD;
+            rec.putLong(at + ID, r.id)
+               .putLong(at + AMOUNT, Math.round(r.totalAmount * 100))
+               .putLong(at + CREATED_SEC, r.createdAt.toEpochSecond(ZoneOffset.UTC))
+               .putInt(at + ROOM, r.roomId)
+               .putInt(at + CHECK_IN, (int) r.checkIn.toEpochDay())
+               .putInt(at + CHECK_OUT, (int) r.checkOut.toEpochDay())
+               .putInt(at + CREATED_NANO, r.createdAt.getNano())
+               .putInt(at + GUEST, putString(r.guestName))
+               .putInt(at + PAY_TXN, putString(r.paymentTxnId))
+               .putInt(at + REFUND_TXN, putString(r.refundTxnId))
+               .put(at + PAY_STATUS, (byte) r.paymentStatus.ordinal())
+               .put(at + RES_STATUS, (byte) r.status.ordinal());
+        }
+
+        @Override public void cancelled(Reservation r) {
+            cancelledAll(List.of(r));
+        }
+
+        /** Stores every refund string durably first, then patches the records in place and forces them once. */
+        @Override public void cancelledAll(List<Reservation> rs) {
+            int[] slots = new int[rs.size()], refunds = new int[rs.size()];
+            for (int i = 0; i < rs.size(); i++) {
+                slots[i] = slotById.get(rs.get(i).id);
+                if (slots[i] < 0) throw new IllegalStateException("No record for reservation " + rs.get(i).id);
+            }
+            for (int i = 0; i < rs.size(); i++) refunds[i] = putString(rs.get(i).refundTxnId);
+            str.force();
+            int lo = Integer.MAX_VALUE, hi = 0;
+            for (int i = 0; i < rs.size(); i++) {
+                Reservation r = rs.get(i);
+                int at = HEADER + slots[i] * RECORD;
+                rec.putInt(at + REFUND_TXN, refunds[i])
+                   .put(at + PAY_STATUS, (byte) r.paymentStatus.ordinal())
+                   .put(at + RES_STATUS, (byte) r.status.ordinal());
+                lo = Math.min(lo, at);
+                hi = Math.max(hi, at + RECORD);
+            }
+            if (lo < hi) rec.force(lo, hi - lo);
+        }
+
+        @Override public void rewrite(ReservationTable all) {
+            count = 0;
+            strUsed = STR_HEADER;
+            str.putInt(0, strUsed);
+            rec.putInt(H_COUNT, 0).putLong(H_LAST_ID, all.lastId());
+            slotById.clear();
+            // a chunk at a time, so a table still reading from an image is never decoded all at once
+            List<Reservation> chunk = new ArrayList<>(READ_CHUNK);
+            for (Reservation r : all.inOrder()) {
+                chunk.add(r);
+                if (chunk.size() == READ_CHUNK) {
+                    createdAll(chunk);
+                    chunk.clear();
+                }
+            }
+            createdAll(chunk);
+            try {
+                recCh.truncate(Math.max(HEADER + (long) count * RECORD, rec.capacity()));
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        @Override public boolean wantsRewrite(boolean closing) { return false; }
+
+        @Override public void close() {
+            if (rec == null) return;
+            if (!rec.isReadOnly()) {
+                rec.force();
+                str.force();
+            }
+            try {
+                recCh.close();
+                strCh.close();
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        Reservation read(int slot) {
+            int at = HEADER + slot * RECORD;
+            return new Reservation(rec.getLong(at + ID), rec.getInt(at + ROOM), getString(rec.getInt(at + GUEST)),
+                    LocalDate.ofEpochDay(rec.getInt(at + CHECK_IN)), LocalDate.ofEpochDay(rec.getInt(at + CHECK_OUT)),
+                    rec.getLong(at + AMOUNT) / 100.0,
+                    LocalDateTime.ofEpochSecond(rec.getLong(at + CREATED_SEC), rec.getInt(at + CREATED_NANO), ZoneOffset.UTC),
+                    getString(rec.getInt(at + PAY_TXN)), PAY[rec.get(at + PAY_STATUS)], RES[rec.get(at + RES_STATUS)],
+                    getString(rec.getInt(at + REFUND_TXN)));
+        }
+
+        private int putString(String s) {
+            if (s == null) return -1;
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            int off = strUsed;
+            ensureStrings(off + 4 + b.length);
+            str.putInt(off, b.length);
+            str.put(off + 4, b);
+            strUsed = off + 4 + b.length;
+            str.putInt(0, strUsed);
+            return off;
+        }
+
+        private String getString(int off) {
+            if (off < 0) return null;
+            byte[] b = new byte[str.getInt(off)];
+            str.get(off + 4, b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        private void ensureRecords(int records) {
+            long need = HEADER + (long) records * RECORD;
+            if (need > rec.capacity()) rec = remap(recCh, Math.max(need, 2L * rec.capacity()));
+        }
+
+        private void ensureStrings(long need) {
+            if (need > str.capacity()) str = remap(strCh, Math.max(need, 2L * str.capacity()));
+        }
+
+        private static MappedByteBuffer remap(FileChannel ch, long size) {
+            if (size > Integer.MAX_VALUE) throw new IllegalStateException("Reservation file over 2 GB");
+            try {
+                return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+    }
+
+    /**
+     * Open-addressing long to int map with linear probing; keys and values sit in primitive
+     * arrays so lookups neither box nor chase nodes. Long.MIN_VALUE is reserved as the empty key.
+     */
+    static class LongIntMap {
+        private static final long FREE = Long.MIN_VALUE;
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        LongIntMap() { this(16); }
+
+        LongIntMap(int expected) {
+            int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+            keys = new long[cap];
+            values = new int[cap];
+            Arrays.fill(keys, FREE);
+        }
+
+        /** The value for key, or -1 when absent. */
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+                if (keys[i] == FREE) return -1;
+            }
+        }
+
+        void put(long key, int value) {
+            if (key == FREE) throw new IllegalArgumentException("Reserved key");
+            if (2 * (size + 1) > keys.length) grow();
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != FREE && keys[i] != key) i = (i + 1) & mask;
+            if (keys[i] == FREE) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void clear() {
+            Arrays.fill(keys, FREE);
+            size = 0;
+        }
+
+        /** Grows ahead of time so the next expected puts never rehash. */
+        void reserve(int expected) {
+            while (2 * (size + expected) > keys.length) grow();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, FREE);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * Reservations in id order, addressed by id through a LongIntMap of slots, plus the id
+     * sequence. New ids almost always arrive last, so keeping the order costs a few slot moves
+     * at most; bulk loads that arrive out of order are sorted once. A table may also start from a
+     * snapshot image read in place: its records are found by binary search over the image's ids
+     * and decoded on first use, and a put() of one of them is kept beside the image, so loading
+     * costs nothing per record. Not thread-safe on its own.
+     */
+    static class ReservationTable {
+        private final ArrayList<Reservation> records = new ArrayList<>();
+        private final LongIntMap slots = new LongIntMap();
+        private final AtomicLong lastId = new AtomicLong(1000); // start at 1001
+        private MappedReservationFile image; // ids ascending and never also in records; null without one
+        // by image slot, the record decoded so far or put() since; readers sharing the lock may
+        // decode the same one at once, and either copy will do
+        private Reservation[] decoded;
+        private Map<Integer, long[]> imageRooms; // the image's room index, or null
+
+        /** Starts an empty table from the image, which has to stay mapped for as long as the table is used. */
+        void attach(MappedReservationFile img) {
+            if (image != null || !records.isEmpty()) throw new IllegalStateException("Table already loaded");
+            int n = img.count();
+            Map<Integer, long[]> rooms = img.readRoomIndex(); // only written for files in id order
+            for (int slot = 1; rooms == null && slot < n; slot++) {
+                if (img.idAt(slot) <= img.idAt(slot - 1)) {
+                    // not in id order, so not a snapshot's image: decode it all instead
+                    putAll(img.readAll());
+                    advanceTo(img.lastId());
+                    return;
+                }
+            }
+            image = img;
+            decoded = new Reservation[n];
+            imageRooms = rooms;
+            if (n > 0) advanceTo(img.idAt(n - 1));
+            advanceTo(img.lastId());
+        }
+
+        /**
+         * The ids of the stays the image held live (not cancelled) when written, by room, or null
+         * without an image or room index; records put() since may have changed them.
+         */
+        Map<Integer, long[]> imageRooms() { return imageRooms; }
+
+        Reservation get(long id) {
+            int slot = slots.get(id);
+            if (slot >= 0) return records.get(slot);
+            slot = imageSlot(id);
+            return slot < 0 ? null : imageRecord(slot);
+        }
+
+        /** Adds r at its place in id order, or replaces the record with the same id in place. */
+        void put(Reservation r) {
+            int slot = slots.get(r.id);
+            if (slot >= 0) {
+                records.set(slot, r);
+            } else if ((slot = imageSlot(r.id)) >= 0) {
+                decoded[slot] = r;
+            } else {
+                int at = indexAfter(r.id);
+                records.add(at, r);
+                for (int i = at; i < records.size(); i++) slots.put(records.get(i).id, i);
+            }
+            advanceTo(r.id);
+        }
+
+        /** put() for a bulk load, sizing the slot map once up front and sorting at most once. */
+        void putAll(Reservation[] rs) {
+            records.ensureCapacity(records.size() + rs.length);
+            slots.reserve(rs.length);
+            boolean ordered = true;
+            for (Reservation r : rs) {
+                int slot = slots.get(r.id);
+                if (slot >= 0) {
+                    records.set(slot, r);
+                    continue;
+                }
+                if ((slot = imageSlot(r.id)) >= 0) {
+                    decoded[slot] = r;
+                    continue;
+                }
+                ordered &= records.isEmpty() || records.get(records.size() - 1).id < r.id;
+                slots.put(r.id, records.size());
+                records.add(r);
+                advanceTo(r.id);
+            }
+            if (!ordered) {
+                records.sort(Comparator.comparingLong(r -> r.id));
+                for (int i = 0; i < records.size(); i++) slots.put(records.get(i).id, i);
+            }
+        }
+
+        /** The slot in records of the first record whose id is greater than id. */
+        private int indexAfter(long id) {
+            int lo = 0, hi = records.size();
+            if (hi == 0 || records.get(hi - 1).id < id) return hi;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (records.get(mid).id <= id) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /** The image slot of the first record whose id is greater than id. */
+        private int imageAfter(long id) {
+            int lo = 0, hi = imageSize();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (image.idAt(mid) <= id) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /** The image slot holding id, or -1. */
+        private int imageSlot(long id) {
+            if (image == null) return -1;
+            int slot = imageAfter(id - 1);
+            return slot < decoded.length && image.idAt(slot) == id ? slot : -1;
+        }
+
+        private int imageSize() { return image == null ? 0 : decoded.length; }
+
+        /** The record in an image slot, decoded on first use and kept. */
+        private Reservation imageRecord(int slot) {
+            Reservation r = decoded[slot];
+            if (r == null) decoded[slot] = r = image.read(slot);
+            return r;
+        }
+
+        long nextId() { return lastId.incrementAndGet(); }
+
+        /** Reserves n consecutive ids and returns the first. */
+        long nextIds(int n) { return lastId.getAndAdd(n) + 1; }
+
+        long lastId() { return lastId.get(); }
+
+        /** Makes sure ids up to and including id are never handed out again. */
+        void advanceTo(long id) { lastId.accumulateAndGet(id, Math::max); }
+
+        int size() { return imageSize() + records.size(); }
+
+        /** The records in id order; image records are decoded for the list, which is a copy when there is an image. */
+        List<Reservation> values() {
+            if (image == null) return Collections.unmodifiableList(records);
+            List<Reservation> all = new ArrayList<>(size());
+            for (Reservation r : inOrder()) all.add(r);
+            return all;
+        }
+
+        /** Iterates the records in id order; image records are decoded as they go by but not kept. */
+        Iterable<Reservation> inOrder() { return () -> cursor(0); }
+
+        /** Walks the records in id order from the first id above after; only valid while the table is unchanged. */
+        Cursor cursor(long after) { return new Cursor(after); }
+
+        final class Cursor implements Iterator<Reservation> {
+            private int i, j; // next image slot, next slot in records
+
+            private Cursor(long after) {
+                i = imageAfter(after);
+                j = indexAfter(after);
+            }
+
+            @Override public boolean hasNext() { return i < imageSize() || j < records.size(); }
+
+            /** The id next() returns; call only while hasNext(). */
+            long peekId() {
+                long a = i < imageSize() ? image.idAt(i) : Long.MAX_VALUE;
+                return j < records.size() ? Math.min(a, records.get(j).id) : a;
+            }
+
+            @Override public Reservation next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (i == imageSize() || j < records.size() && records.get(j).id < image.idAt(i)) return records.get(j++);
+                Reservation r = decoded[i];
+                if (r == null) r = image.read(i);
+                i++;
+                return r;
+            }
+        }
+
+        /** Hands every record to visit through one reused Stay; image records are read without decoding. */
+        void forEachStay(Consumer<Stay> visit) { forEachStay(true, visit); }
+
+        /** forEachStay(), leaving out the image's records unless withImage. */
+        void forEachStay(boolean withImage, Consumer<Stay> visit) {
+            Stay s = new Stay();
+            for (int slot = 0; withImage && slot < imageSize(); slot++) {
+                Reservation r = decoded[slot];
+                if (r != null) s.of(r);
+                else image.stay(slot, s);
+                visit.accept(s);
+            }
+            for (Reservation r : records) visit.accept(s.of(r));
+        }
+
+        /** A copy as it stands, to write out once the lock is gone; it shares the image and decodes nothing. */
+        ReservationTable copy() {
+            ReservationTable c = new ReservationTable();
+            c.image = image;
+            c.decoded = decoded == null ? null : decoded.clone();
+            c.imageRooms = imageRooms;
+            c.putAll(records.toArray(new Reservation[0]));
+            c.advanceTo(lastId());
+            return c;
+        }
+
+        /** Drops matching records and renumbers the slots of the rest; returns what was dropped. */
+        List<Reservation> removeIf(Predicate<Reservation> drop) {
+            if (image != null) {
+                // rare enough (archiving) that the table simply stops using the image
+                List<Reservation> all = values();
+                image = null;
+                decoded = null;
+                imageRooms = null;
+                records.clear();
+                slots.clear();
+                putAll(all.toArray(new Reservation[0]));
+            }
+            List<Reservation> removed = new ArrayList<>(), kept = new ArrayList<>(records.size());
+            for (Reservation r : records) (drop.test(r) ? removed : kept).add(r);
+            if (removed.isEmpty()) return removed;
+            records.clear();
+            slots.clear();
+            for (Reservation r : kept) {
+                slots.put(r.id, records.size());
+                records.add(r);
+            }
+            return removed;
+        }
+    }
+
+    /** Which reservations a scan returns; null fields and roomId 0 match anything. */
+    static class ReservationFilter {
+        static final ReservationFilter ALL = new ReservationFilter(null, 0, null, null);
+
+        final ResStatus status;
+        final int roomId;
+        final LocalDate from, to; // stays overlapping [from, to)
+
+        ReservationFilter(ResStatus status, int roomId, LocalDate from, LocalDate to) {
+            this.status = status; this.roomId = roomId; this.from = from; this.to = to;
+        }
+
+        /** Reads status, roomId, from and to (YYYY-MM-DD) from request or command-line parameters. */
+        static ReservationFilter parse(Map<String, String> p) {
+            String status = p.get("status"), room = p.get("roomId"), from = p.get("from"), to = p.get("to");
+            return new ReservationFilter(
+                    status == null || status.isEmpty() ? null : ResStatus.valueOf(status.toUpperCase()),
+                    room == null || room.isEmpty() ? 0 : Integer.parseInt(room),
+                    from == null || from.isEmpty() ? null : LocalDate.parse(from),
+                    to == null || to.isEmpty() ? null : LocalDate.parse(to));
+        }
+
+        boolean matches(Reservation r) {
+            if (status != null && r.status != status) return false;
+            if (roomId != 0 && r.roomId != roomId) return false;
+            if (from != null && !r.checkOut.isAfter(from)) return false;
+            return to == null || r.checkIn.isBefore(to);
+        }
+    }
+
+    /**
+     * Writes reservations as CSV (the reservations.csv layout) or a JSON array in one pass over
+     * ReservationStore.scan, reusing a single line buffer, so heap use does not grow with history.
+     */
+    static class ReservationExport {
+        static long write(ReservationStore store, ReservationFilter f, String format, Writer out) throws IOException {
+            boolean json = format.equals("json");
+            if (!json && !format.equals("csv")) throw new IllegalArgumentException("Unknown format: " + format);
+            StringBuilder line = new StringBuilder(256);
+            long[] count = { 0 };
+            if (json) out.write('[');
+            try {
+                store.scan(f, 0, Long.MAX_VALUE, r -> {
+                    line.setLength(0);
+                    if (json) {
+                        if (count[0] > 0) line.append(',');
+                        HttpApi.appendJson(line, r);
+                    } else {
+                        line.append(r.toCsv()).append('\n');
+                    }
+                    try {
+                        out.append(line);
+                    } catch (IOException e) { throw new UncheckedIOException(e); }
+                    count[0]++;
+                });
+            } catch (UncheckedIOException e) { throw e.getCause(); }
+            if (json) out.write(']');
+            out.flush();
+            return count[0];
+        }
+    }
+
+    /** One stay in a ReservationStore.bookAll batch; amount and payTxn are recorded as given. */
+    static class BookingRequest {
+        final int roomId;
+        final String guest;
+        final LocalDate checkIn, checkOut;
+        final double amount;
+        final String payTxn;
+
+        BookingRequest(int roomId, String guest, LocalDate checkIn, LocalDate checkOut, double amount, String payTxn) {
+            this.roomId = roomId; this.guest = guest; this.checkIn = checkIn; this.checkOut = checkOut;
+            this.amount = amount; this.payTxn = payTxn;
+        }
+    }
+
+    /**
+     * Reservations live in memory; a ReservationBackend (the CSV journal, the mapped binary file
+     * or month segments, picked by file extension) keeps them on disk. With segments, history the
+     * backend has archived is evicted and faulted back in only when a date range reaches it.
+     *
+     * Changes to one room are serialized by that room's lock stripe, so book() can check and
+     * reserve atomically while other rooms proceed in parallel. Lock order is stripe, then
+     * backend monitor, then table lock; persisting a change and publishing it to the table happen
+     * under one backend monitor so a compaction never sees one without the other.
+     */
+    static class ReservationStore {
+        private static final int STRIPES = 64;
+        private static final int[] ALL_STRIPES = IntStream.range(0, STRIPES).toArray();
+        private static final int SCAN_CHUNK = 1024;
+
+        private final ReservationBackend backend;
+        private final boolean readOnly;
+        private final ReservationTable table = new ReservationTable();
+        private final ReadWriteLock tableLock = new ReentrantReadWriteLock();
+        private final Object[] stripes = new Object[STRIPES];
+        private final AtomicLong holds = new AtomicLong();
+        private long evictions; // archive() runs that moved records out of the table; guarded by tableLock
+        private final AvailabilityIndex index;
+        private final List<ReservationListener> listeners = new CopyOnWriteArrayList<>();
+        /**
+         * Snapshots, archiving and calendar rolls of every store in the process run on this one
+         * daemon thread, so a property group does not start threads per property, and only one
+         * snapshot is ever being written at a time.
+         */
+        static final ScheduledExecutorService BACKGROUND = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "reservation-background");
+            t.setDaemon(true);
+            return t;
+        });
+
+        private final ReentrantLock snapshotLock = new ReentrantLock(); // taken before the backend monitor
+        private final AtomicBoolean snapshotQueued = new AtomicBoolean();
+        private volatile boolean closed; // set under snapshotLock; queued snapshots then do nothing
+        private ScheduledFuture<?> archiver;
+        ReservationStore(String file) { this(file, false); }
+
+        /**
+         * readOnly opens the files without changing them, for tools that run beside a live
+         * server (export, analytics); every booking, cancellation or snapshot is then refused.
+         */
+        ReservationStore(String file, boolean readOnly) {
+            this.backend = ReservationBackend.open(file, readOnly);
+            this.readOnly = readOnly;
+            backend.load(table);
+            this.index = new AvailabilityIndex(table, this::resident);
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+        }
+
+        List<Reservation> loadAll() {
+            tableLock.readLock().lock();
+            try {
+                return new ArrayList<>(table.values());
+            } finally { tableLock.readLock().unlock(); }
+        }
+
+        /** Hands each resident reservation to visit through one reused Stay, without decoding what the table has not. */
+        void forEachStay(Consumer<Stay> visit) {
+            tableLock.readLock().lock();
+            try {
+                table.forEachStay(visit);
+            } finally { tableLock.readLock().unlock(); }
+        }
+
+        /** forEachStay() plus the archived reservations that are not resident. */
+        void forEachStayWithArchived(Consumer<Stay> visit) {
+            forEachStayWithArchived(visit, (key, read) -> read.accept(visit));
+        }
+
+        /**
+         * forEachStay(), then month once per archived, non-resident month with its key (see
+         * ReservationBackend.archivedMonths) and a reader for its stays, which month need not call
+         * if it already has what it wants under that key. Runs under the backend monitor, so no
+         * month is archived or faulted in meanwhile.
+         */
+        void forEachStayWithArchived(Consumer<Stay> visit, BiConsumer<String, Consumer<Consumer<Stay>>> month) {
+            synchronized (backend) {
+                forEachStay(visit);
+                Stay s = new Stay();
+                backend.archivedMonths().forEach((m, key) ->
+                        month.accept(key, sink -> backend.forEachArchived(m, r -> sink.accept(s.of(r)))));
+            }
+        }
+
+        /** See ReservationBackend.archiveSidecar. */
+        Path archiveSidecar(String name) { return backend.archiveSidecar(name); }
+
+        /** Reads the backend's full history (see ReservationBackend.history) between snapshots. */
+        void history(Consumer<Reservation> snapshot, Consumer<String> journal) {
+            snapshotLock.lock();
+            try {
+                synchronized (backend) { backend.history(snapshot, journal); }
+            } finally { snapshotLock.unlock(); }
+        }
+
+        /** Reserves the room only if it is still free for the dates; null if someone got there first. */
+        Reservation book(int roomId, String guest, LocalDate ci, LocalDate co, double amount, String payTxn) {
+            long lockWait = System.nanoTime();
+            synchronized (stripe(roomId)) {
+                Metrics.LOCK_WAIT.since(lockWait);
+                ensureResident(ci, co);
+                if (!index.isFree(roomId, ci, co)) return null;
+                return createLocked(roomId, guest, ci, co, amount, payTxn);
+            }
+        }
+
+        /**
+         * Blocks the room for the dates without persisting anything, e.g. while payment is in
+         * flight; null if it is not free. Follow up with confirm() or release().
+         */
+        Reservation hold(int roomId, LocalDate ci, LocalDate co) {
+            long lockWait = System.nanoTime();
+            synchronized (stripe(roomId)) {
+                Metrics.LOCK_WAIT.since(lockWait);
+                ensureResident(ci, co);
+                if (!index.isFree(roomId, ci, co)) return null;
+                Reservation h = new Reservation(-holds.incrementAndGet(), roomId, null, ci, co, 0, LocalDateTime.now(),
+                        null, null, ResStatus.HELD, null);
+                index.add(h);
+                return h;
+            }
+        }
+
+        /** Turns a hold into a confirmed reservation. */
+        Reservation confirm(Reservation hold, String guest, double amount, String payTxn) {
+            long lockWait = System.nanoTime();
+            synchronized (stripe(hold.roomId)) {
+                Metrics.LOCK_WAIT.since(lockWait);
+                index.remove(hold);
+                ensureResident(hold.checkIn, hold.checkOut);
+                return createLocked(hold.roomId, guest, hold.checkIn, hold.checkOut, amount, payTxn);
+            }
+        }
+
+        void release(Reservation hold) {
+            long lockWait = System.nanoTime();
+            synchronized (stripe(hold.roomId)) {
+                Metrics.LOCK_WAIT.since(lockWait);
+                index.remove(hold);
+            }
+        }
+
+        Reservation create(int roomId, String guest, LocalDate ci, LocalDate co, double amount, String payTxn) {
+            long lockWait = System.nanoTime();
+            synchronized (stripe(roomId)) {
+                Metrics.LOCK_WAIT.since(lockWait);
+                ensureResident(ci, co);
+                return createLocked(roomId, guest, ci, co, amount, payTxn);
+            }
+        }
+
+        /** create() for callers that already hold the room's stripe and made its months resident. */
+        private Reservation createLocked(int roomId, String guest, LocalDate ci, LocalDate co, double amount, String payTxn) {
+            checkWritable();
+            Reservation r = new Reservation(table.nextId(), roomId, guest, ci, co, amount, LocalDateTime.now(),
+                    payTxn, PayStatus.PAID, ResStatus.CONFIRMED, null);
+            long backendWait = System.nanoTime();
+            synchronized (backend) {
+                Metrics.LOCK_WAIT.since(backendWait);
+                long write = System.nanoTime();
+                backend.created(r);
+                Metrics.STORE_WRITE.since(write);
+                publish(r);
+            }
+            index.add(r);
+            notifyCreated(r);
+            maybeCompact();
+            return r;
+        }
+
+        void cancel(long id, String refundTxn) {
+            checkWritable();
+            Reservation seen = findById(id);
+            if (seen == null) throw new RuntimeException("Reservation not found");
+            long lockWait = System.nanoTime();
+            synchronized (stripe(seen.roomId)) {
+                Metrics.LOCK_WAIT.since(lockWait);
+                Reservation r = resident(id); // re-read: another cancel may have won the race
+                if (r == null) throw new IllegalStateException(archivedMessage(id));
+                if (r.status == ResStatus.CANCELLED) throw new IllegalStateException("Reservation already cancelled");
+                Reservation updated = r.cancelled(refundTxn);
+                long backendWait = System.nanoTime();
+                synchronized (backend) {
+                    Metrics.LOCK_WAIT.since(backendWait);
+                    long write = System.nanoTime();
+                    backend.cancelled(updated);
+                    Metrics.STORE_WRITE.since(write);
+                    publish(updated);
+                }
+                index.remove(r);
+                notifyCancelled(updated);
+                maybeCompact();
+            }
+        }
+
+        /**
+         * Books every request or none. The stripes of all rooms involved are taken in index order,
+         * each stay is checked against the index and against the rest of the batch, ids come from
+         * one block and the backend persists the whole batch with a single write and sync.
+         * Throws IllegalStateException naming the first request (1-based) that cannot be booked.
+         */
+        List<Reservation> bookAll(List<BookingRequest> batch) {
+            if (batch.isEmpty()) return List.of();
+            long lockWait = System.nanoTime();
+            return locked(stripeIds(batch.stream().mapToInt(b -> b.roomId)), 0, () -> {
+                Metrics.LOCK_WAIT.since(lockWait);
+                Map<Integer, List<Integer>> byRoom = new HashMap<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    BookingRequest b = batch.get(i);
+                    if (!b.checkOut.isAfter(b.checkIn)) throw rejected(i, "check-out must be after check-in");
+                    ensureResident(b.checkIn, b.checkOut);
+                    if (!index.isFree(b.roomId, b.checkIn, b.checkOut)) throw rejected(i, "room " + b.roomId + " is not free");
+                    byRoom.computeIfAbsent(b.roomId, k -> new ArrayList<>()).add(i);
+                }
+                for (List<Integer> stays : byRoom.values()) {
+                    stays.sort(Comparator.comparing((Integer i) -> batch.get(i).checkIn).thenComparing(i -> i));
+                    for (int k = 1; k < stays.size(); k++) {
+                        if (batch.get(stays.get(k)).checkIn.isBefore(batch.get(stays.get(k - 1)).checkOut)) {
+                            throw rejected(Math.max(stays.get(k), stays.get(k - 1)), "overlaps another stay in the batch");
+                        }
+                    }
+                }
+                long first = table.nextIds(batch.size());
+                LocalDateTime now = LocalDateTime.now();
+                List<Reservation> created = new ArrayList<>(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    BookingRequest b = batch.get(i);
+                    created.add(new Reservation(first + i, b.roomId, b.guest, b.checkIn, b.checkOut, b.amount, now,
+                            b.payTxn, PayStatus.PAID, ResStatus.CONFIRMED, null));
+                }
+                persist(created, true);
+                for (Reservation r : created) {
+                    index.add(r);
+                    notifyCreated(r);
+                }
+                maybeCompact();
+                return created;
+            });
+        }
+
+        /**
+         * Cancels every reservation or none, without refunds, persisting the batch with a single
+         * write and sync; throws IllegalStateException for an unknown, repeated or already
+         * cancelled id.
+         */
+        List<Reservation> cancelAll(List<Long> ids) {
+            if (ids.isEmpty()) return List.of();
+            List<Reservation> seen = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                Reservation r = findById(ids.get(i));
+                if (r == null) throw rejected(i, "reservation " + ids.get(i) + " not found");
+                seen.add(r);
+            }
+            long lockWait = System.nanoTime();
+            return locked(stripeIds(seen.stream().mapToInt(r -> r.roomId)), 0, () -> {
+                Metrics.LOCK_WAIT.since(lockWait);
+                Set<Long> distinct = new HashSet<>();
+                List<Reservation> current = new ArrayList<>(ids.size()), updated = new ArrayList<>(ids.size());
+                for (int i = 0; i < ids.size(); i++) {
+                    Reservation r = resident(ids.get(i)); // re-read under the stripes
+                    if (r == null) throw rejected(i, archivedMessage(ids.get(i)));
+                    if (!distinct.add(r.id)) throw rejected(i, "reservation " + r.id + " is listed twice");
+                    if (r.status == ResStatus.CANCELLED) throw rejected(i, "reservation " + r.id + " is already cancelled");
+                    current.add(r);
+                    updated.add(r.cancelled(null));
+                }
+                persist(updated, false);
+                for (int i = 0; i < current.size(); i++) {
+                    index.remove(current.get(i));
+                    notifyCancelled(updated.get(i));
+                }
+                maybeCompact();
+                return updated;
+            });
+        }
+
+        /**
+         * Streams matching reservations in id order, archived ones included, starting after id
+         * cursor (0 for the start), handing at most limit of them to sink; returns the cursor to
+         * continue from, or -1 at the end. The cursor is an id rather than a slot, so archiving
+         * or faulting records in between pages never skips or repeats one.
+         * Records are gathered a chunk at a time under the read lock into one reused buffer and
+         * passed on outside it, so even a full export neither copies the history nor holds off
+         * writers for long. Archived records come from the backend up to SCAN_CHUNK at a time and
+         * are merged in; resident ones past the last archived id fetched wait for the next fetch.
+         */
+        long scan(ReservationFilter f, long cursor, long limit, Consumer<Reservation> sink) {
+            Reservation[] buf = new Reservation[SCAN_CHUNK];
+            long after = Math.max(0, cursor), emitted = 0;
+            List<Reservation> archived = List.of();
+            int a = 0; // next archived record to merge
+            boolean moreArchived = true;
+            long seenEvictions = -1;
+            while (emitted < limit) {
+                if (a == archived.size() && moreArchived) {
+                    int want = (int) Math.min(SCAN_CHUNK, limit - emitted);
+                    synchronized (backend) {
+                        tableLock.readLock().lock();
+                        try { seenEvictions = evictions; } finally { tableLock.readLock().unlock(); }
+                        archived = backend.archivedAfter(f, after, want);
+                    }
+                    a = 0;
+                    moreArchived = archived.size() == want;
+                }
+                long fetched = moreArchived ? archived.get(archived.size() - 1).id : Long.MAX_VALUE;
+                long hi; // every match up to this id is in buf or archived
+                int n = 0;
+                tableLock.readLock().lock();
+                try {
+                    if (evictions != seenEvictions) {
+                        // records left the table since the fetch; fetch again from here so none is missed
+                        archived = List.of();
+                        a = 0;
+                        moreArchived = true;
+                        continue;
+                    }
+                    ReservationTable.Cursor c = table.cursor(after);
+                    long examined = after;
+                    while (c.hasNext() && n < buf.length && emitted + n < limit && c.peekId() <= fetched) {
+                        Reservation r = c.next();
+                        examined = r.id;
+                        if (f.matches(r)) buf[n++] = r;
+                    }
+                    hi = c.hasNext() && c.peekId() <= fetched ? examined : fetched;
+                } finally { tableLock.readLock().unlock(); }
+                int i = 0;
+                while (emitted < limit && (i < n || a < archived.size() && archived.get(a).id <= hi)) {
+                    Reservation next = i < n && (a == archived.size() || buf[i].id < archived.get(a).id)
+                            ? buf[i++] : archived.get(a++);
+                    if (next.id <= after) continue; // faulted in since the fetch, so met twice
+                    sink.accept(next);
+                    emitted++;
+                    after = next.id;
+                }
+                Arrays.fill(buf, 0, n, null);
+                if (i == n && (a == archived.size() || archived.get(a).id > hi)) {
+                    if (hi == Long.MAX_VALUE) return -1; // the table and the archive are both used up
+                    after = hi;
+                }
+            }
+            return after;
+        }
+
+        /**
+         * Listeners run under the room's stripe, right after the change is persisted. One that
+         * throws is reported and skipped: the change is durable by then, so the caller must not
+         * see it fail, and the listeners after it must still hear of it.
+         */
+        void addListener(ReservationListener l) { listeners.add(l); }
+
+        private void notifyCreated(Reservation r) {
+            for (ReservationListener l : listeners) {
+                try {
+                    l.onCreated(r);
+                } catch (RuntimeException e) { listenerFailed(l, r, e); }
+            }
+        }
+
+        private void notifyCancelled(Reservation r) {
+            for (ReservationListener l : listeners) {
+                try {
+                    l.onCancelled(r);
+                } catch (RuntimeException e) { listenerFailed(l, r, e); }
+            }
+        }
+
+        private static void listenerFailed(ReservationListener l, Reservation r, RuntimeException e) {
+            System.err.println(l.getClass().getSimpleName() + " failed on reservation " + r.id + ": " + e);
+        }
+
+        List<Reservation> staysOverlapping(int roomId, LocalDate inDate, LocalDate outDate) {
+            ensureResident(inDate, outDate);
+            return index.overlapping(roomId, inDate, outDate);
+        }
+
+        boolean isFree(int roomId, LocalDate inDate, LocalDate outDate) {
+            ensureResident(inDate, outDate);
+            return index.isFree(roomId, inDate, outDate);
+        }
+
+        /** Whether the reservation is held in memory; only those can be cancelled, archived ones are read-only. */
+        boolean isResident(long id) { return resident(id) != null; }
+
+        static String archivedMessage(long id) {
+            return "Reservation " + id + " is archived and can no longer be cancelled";
+        }
+
+        private Reservation resident(long id) {
+            tableLock.readLock().lock();
+            try {
+                return table.get(id);
+            } finally { tableLock.readLock().unlock(); }
+        }
+
+        /** Archived reservations are found too, as read-only copies that cannot be cancelled. */
+        Reservation findById(long id) {
+            long t0 = System.nanoTime();
+            Reservation r;
+            tableLock.readLock().lock();
+            try {
+                r = table.get(id);
+            } finally { tableLock.readLock().unlock(); }
+            if (r == null && backend.archivedUntil() != Long.MIN_VALUE) {
+                synchronized (backend) { r = backend.fetchArchived(id); }
+            }
+            Metrics.LOOKUP.since(t0);
+            return r;
+        }
+
+        /**
+         * Lets the backend archive finished history and evicts those months from the table and
+         * index; returns how many reservations left memory.
+         */
+        int archive() {
+            checkWritable();
+            snapshotLock.lock();
+            try {
+                if (closed) return 0;
+                synchronized (backend) {
+                    // only segments with nothing pending are archived
+                    if (backend.wantsRewrite(true)) beginRewrite().run();
+                    Set<YearMonth> months = backend.archive(LocalDate.now());
+                    if (months.isEmpty()) return 0;
+                    List<Reservation> evicted;
+                    tableLock.writeLock().lock();
+                    try {
+                        evicted = table.removeIf(r -> months.contains(YearMonth.from(r.checkIn)));
+                        evictions++;
+                    } finally { tableLock.writeLock().unlock(); }
+                    for (Reservation r : evicted) index.remove(r);
+                    return evicted.size();
+                }
+            } finally { snapshotLock.unlock(); }
+        }
+
+        /** Writes a fresh snapshot now, whether or not anything changed, and waits for it. */
+        void snapshot() {
+            try {
+                BACKGROUND.submit(() -> rewrite(true)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) { throw new RuntimeException(e.getCause()); }
+        }
+
+        /** Calls archive() every period on the background thread, starting now, until close(). */
+        void startArchiver(Duration period) {
+            archiver = BACKGROUND.scheduleWithFixedDelay(() -> {
+                try {
+                    int n = archive();
+                    if (n > 0) System.out.println("Archived " + n + " past reservations");
+                } catch (RuntimeException e) {
+                    System.err.println("Archiving failed: " + e.getMessage());
+                }
+            }, 0, period.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /** Waits for a snapshot being written, takes the last one if the backend wants it and closes the files. */
+        void close() {
+            if (archiver != null) archiver.cancel(false);
+            snapshotLock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                synchronized (backend) {
+                    if (backend.wantsRewrite(true)) beginRewrite().run();
+                    backend.close();
+                }
+            } finally { snapshotLock.unlock(); }
+        }
+
+        /** Brings archived stays overlapping [ci, co) back into the table and index before the dates are judged. */
+        private void ensureResident(LocalDate ci, LocalDate co) {
+            if (ci.toEpochDay() >= backend.archivedUntil()) return;
+            synchronized (backend) {
+                List<Reservation> back = backend.faultIn(ci, co);
+                if (back.isEmpty()) return;
+                tableLock.writeLock().lock();
+                try {
+                    table.putAll(back.toArray(new Reservation[0]));
+                } finally { tableLock.writeLock().unlock(); }
+                for (Reservation r : back) index.add(r);
+            }
+        }
+
+        private Object stripe(int roomId) {
+            return stripes[stripeIndex(roomId)];
+        }
+
+        private static int stripeIndex(int roomId) {
+            return (roomId * 0x9E3779B9 >>> 16) & (STRIPES - 1);
+        }
+
+        private static int[] stripeIds(IntStream roomIds) {
+            return roomIds.map(ReservationStore::stripeIndex).distinct().sorted().toArray();
+        }
+
+        /** Runs body holding stripes ids[from..], taken in ascending order so batches cannot deadlock. */
+        private <T> T locked(int[] ids, int from, Supplier<T> body) {
+            if (from == ids.length) return body.get();
+            synchronized (stripes[ids[from]]) {
+                return locked(ids, from + 1, body);
+            }
+        }
+
+        /**
+         * Runs body holding every stripe: no booking or cancellation is in flight and no listener
+         * fires until it returns, so a listener can rebuild its state from the store without losing events.
+         */
+        <T> T quiesced(Supplier<T> body) {
+            return locked(ALL_STRIPES, 0, body);
+        }
+
+        private static IllegalStateException rejected(int index, String why) {
+            return new IllegalStateException("Batch rejected, request " + (index + 1) + ": " + why);
+        }
+
+        /** Writes a batch through the backend in one call and publishes it to the table in one lock. */
+        private void persist(List<Reservation> rs, boolean created) {
+            checkWritable();
+            long backendWait = System.nanoTime();
+            synchronized (backend) {
+                Metrics.LOCK_WAIT.since(backendWait);
+                long write = System.nanoTime();
+                if (created) backend.createdAll(rs);
+                else backend.cancelledAll(rs);
+                Metrics.STORE_WRITE.since(write);
+                tableLock.writeLock().lock();
+                try {
+                    for (Reservation r : rs) table.put(r);
+                } finally { tableLock.writeLock().unlock(); }
+            }
+        }
+
+        private void checkWritable() {
+            if (readOnly) throw new IllegalStateException("Reservations are open read-only");
+        }
+
+        private void publish(Reservation r) {
+            tableLock.writeLock().lock();
+            try {
+                table.put(r);
+            } finally { tableLock.writeLock().unlock(); }
+        }
+
+        /** Once the journal has grown enough, queues a snapshot; callers hold stripes, so it never runs here. */
+        private void maybeCompact() {
+            synchronized (backend) {
+                if (!backend.wantsRewrite(false)) return;
+            }
+            if (closed || !snapshotQueued.compareAndSet(false, true)) return;
+            try {
+                BACKGROUND.execute(() -> {
+                    snapshotQueued.set(false);
+                    try {
+                        rewrite(false);
+                    } catch (RuntimeException e) {
+                        System.err.println("Snapshot failed: " + e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the JVM is shutting down; close() takes the final snapshot itself
+            }
+        }
+
+        /**
+         * Snapshots unless force is false and the backend no longer wants one. Only the cut-over
+         * holds the backend monitor; the files are written after it is released, so bookings and
+         * cancellations carry on meanwhile.
+         */
+        private void rewrite(boolean force) {
+            checkWritable();
+            snapshotLock.lock();
+            try {
+                if (closed) return;
+                long t0 = System.nanoTime();
+                Runnable rest;
+                synchronized (backend) {
+                    if (!force && !backend.wantsRewrite(false)) return;
+                    rest = beginRewrite();
+                }
+                rest.run();
+                Metrics.STORE_COMPACT.since(t0);
+            } finally { snapshotLock.unlock(); }
+        }
+
+        private Runnable beginRewrite() {
+            tableLock.readLock().lock();
+            try {
+                return backend.beginRewrite(table);
+            } finally { tableLock.readLock().unlock(); }
+        }
+    }
+
+    /**
+     * Loads bookings from a CSV of roomId,guest,checkIn,checkOut[,amount[,paymentTxnId]] lines
+     * through ReservationStore.bookAll, so a migration is validated all-or-nothing and lands in a
+     * single group commit. A missing amount is quoted from the room's nightly price. cancel()
+     * does the same for a file of reservation ids through ReservationStore.cancelAll.
+     */
+    static class BookingImport {
+        static boolean run(Path csv, String resFile) {
+            Catalog catalog = new Catalog(ROOMS_FILE);
+            List<BookingRequest> batch = new ArrayList<>();
+            try (BufferedReader r = Files.newBufferedReader(csv)) {
+                int lineNo = 0;
+                for (String line; (line = r.readLine()) != null; ) {
+                    lineNo++;
+                    if (line.isBlank()) continue;
+                    String[] p = Reservation.splitCsv(line);
+                    try {
+                        if (p.length < 4) throw new IllegalArgumentException("expected roomId,guest,checkIn,checkOut");
+                        int roomId = Integer.parseInt(p[0].trim());
+                        Room room = catalog.byId(roomId);
+                        if (room == null) throw new IllegalArgumentException("unknown room " + roomId);
+                        LocalDate in = LocalDate.parse(p[2].trim()), out = LocalDate.parse(p[3].trim());
+                        double amount = p.length > 4 && !p[4].isBlank() ? Double.parseDouble(p[4].trim()) : quote(room, in, out);
+                        batch.add(new BookingRequest(roomId, p[1].trim(), in, out, amount,
+                                p.length > 5 && !p[5].isBlank() ? p[5].trim() : null));
+                    } catch (IllegalArgumentException | DateTimeParseException e) {
+                        System.out.println("Import rejected, line " + lineNo + ": " + e.getMessage());
+                        return false;
+                    }
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+            ReservationStore store = new ReservationStore(resFile);
+            try {
+                long t0 = System.nanoTime();
+                List<Reservation> booked = store.bookAll(batch);
+                System.out.printf("Imported %d reservations (ids %d-%d) in %d ms%n", booked.size(),
+                        booked.isEmpty() ? 0 : booked.get(0).id, booked.isEmpty() ? 0 : booked.get(booked.size() - 1).id,
+                        (System.nanoTime() - t0) / 1_000_000);
+                return true;
+            } catch (IllegalStateException e) {
+                System.out.println("Import rejected: " + e.getMessage());
+                return false;
+            } finally {
+                store.close();
+            }
+        }
+
+        /** Cancels, without refunds, every reservation whose id is on a line of the file, or none. */
+        static boolean cancel(Path ids, String resFile) {
+            List<Long> batch = new ArrayList<>();
+            try (BufferedReader r = Files.newBufferedReader(ids)) {
+                int lineNo = 0;
+                for (String line; (line = r.readLine()) != null; ) {
+                    lineNo++;
+                    if (line.isBlank()) continue;
+                    try {
+                        batch.add(Long.parseLong(line.trim()));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Cancellation rejected, line " + lineNo + ": not an id: " + line.trim());
+                        return false;
+                    }
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+            ReservationStore store = new ReservationStore(resFile);
+            try {
+                long t0 = System.nanoTime();
+                List<Reservation> cancelled = store.cancelAll(batch);
+                System.out.printf("Cancelled %d reservations in %d ms%n", cancelled.size(), (System.nanoTime() - t0) / 1_000_000);
+                return true;
+            } catch (IllegalStateException e) {
+                System.out.println("Cancellation rejected: " + e.getMessage());
+                return false;
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Micro-benchmarks for the hot paths, in the spirit of JMH: each operation gets warm-up
+     * iterations and then measured ones, reporting throughput, latency and bytes allocated per
+     * operation (from the thread's allocation counter) along with GC activity. Data sets are made
+     * by generate(), which writes rooms.csv and reservations.csv with a few years of history.
+     *
+     *   bench [reservations...]          defaults to 1000 100000; try 10000000 with a large heap
+     *   generate <dir> <reservations>
+     */
+    static class Bench {
+        private static final int WARMUP = 2, ITERATIONS = 3;
+        private static final long ITERATION_NANOS = 1_000_000_000L;
+        private static volatile long sink;
+
+        static void run(long[] sizes) {
+            System.out.printf("%-28s %12s %14s %12s %12s %10s%n", "benchmark", "reservations", "ops/s", "us/op", "B/op", "gc ms");
+            for (long size : sizes) {
+                try {
+                    Path dir = Files.createTempDirectory("bench");
+                    generate(dir, size);
+                    runAll(dir, size);
+                    try (var files = Files.list(dir)) {
+                        for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+                    }
+                    Files.delete(dir);
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+        }
+
+        private static void runAll(Path dir, long size) throws IOException {
+            String roomsFile = dir.resolve("rooms.csv").toString(), resFile = dir.resolve("reservations.csv").toString();
+            List<String> lines = sampleLines(Path.of(resFile), 10_000);
+            String[] sample = lines.toArray(new String[0]);
+            Random rnd = new Random(42);
+            measure("Reservation.fromCsv", size, () -> Reservation.fromCsv(sample[rnd.nextInt(sample.length)]).id);
+            measure("Reservation.splitCsv", size, () -> Reservation.splitCsv(sample[rnd.nextInt(sample.length)]).length);
+            measure("SimulatedGateway.luhn", size, () -> SimulatedGateway.luhn("4111111111111111") ? 1 : 0);
+            measure("ReservationStore.open csv", size, () -> {
+                ReservationStore s = new ReservationStore(resFile);
+                long n = s.loadAll().size();
+                s.close();
+                return n;
+            });
+            ReservationStore imaged = new ReservationStore(resFile);
+            imaged.snapshot();
+            imaged.close();
+            measure("ReservationStore.open image", size, () -> {
+                ReservationStore s = new ReservationStore(resFile);
+                long n = s.loadAll().size();
+                s.close();
+                return n;
+            });
+
+            Catalog catalog = new Catalog(roomsFile);
+            ReservationStore store = new ReservationStore(resFile);
+            OccupancyCalendar calendar = new OccupancyCalendar(catalog, store, LocalDate.now(), OccupancyCalendar.DEFAULT_NIGHTS);
+            long maxId = 1000 + size;
+            measure("ReservationStore.loadAll", size, () -> store.loadAll().size());
+            measure("ReservationStore.findById", size, () -> store.findById(1001 + (long) (rnd.nextDouble() * size)).roomId);
+            measure("Catalog.findAvailable", size, () -> {
+                LocalDate ci = LocalDate.now().plusDays(rnd.nextInt(365));
+                return catalog.findAvailable(ci, ci.plusDays(1 + rnd.nextInt(4)), null, store).size();
+            });
+            measure("OccupancyCalendar.findAvail", size, () -> {
+                LocalDate ci = LocalDate.now().plusDays(rnd.nextInt(365));
+                return calendar.findAvailable(ci, ci.plusDays(1 + rnd.nextInt(4)), null).size();
+            });
+            List<Room> rooms = catalog.all();
+            long[] created = new long[1 << 20];
+            int[] made = { 0 };
+            measure("ReservationStore.create", size, () -> {
+                Room room = rooms.get(rnd.nextInt(rooms.size()));
+                LocalDate ci = LocalDate.now().plusYears(3).plusDays(rnd.nextInt(3650));
+                Reservation r = store.create(room.id, "Bench Guest", ci, ci.plusDays(2), 2 * room.pricePerNight, "PAY-BENCH");
+                if (made[0] < created.length) created[made[0]++] = r.id;
+                return r.id;
+            });
+            int[] next = { 0 };
+            measure("ReservationStore.cancel", size, () -> {
+                long id = next[0] < made[0] ? created[next[0]++] : maxId;
+                Reservation r = store.findById(id);
+                if (r.status == ResStatus.CANCELLED) return 0; // ran out of fresh bookings
+                store.cancel(id, "RFD-BENCH");
+                return id;
+            });
+            store.close();
+        }
+
+        private static void measure(String name, long size, LongSupplier op) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long tid = Thread.currentThread().getId();
+            for (int i = 0; i < WARMUP; i++) iteration(op);
+            long ops = 0, nanos = 0, bytes = 0, gcMillis = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long gc0 = gcMillis(), b0 = threads.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+                ops += iteration(op);
+                nanos += System.nanoTime() - t0;
+                bytes += threads.getThreadAllocatedBytes(tid) - b0;
+                gcMillis += gcMillis() - gc0;
+            }
+            System.out.printf("%-28s %12d %14.1f %12.3f %12d %10d%n", name, size,
+                    ops * 1e9 / nanos, nanos / 1e3 / ops, bytes / ops, gcMillis);
+        }
+
+        private static long iteration(LongSupplier op) {
+            long ops = 0, acc = 0, end = System.nanoTime() + ITERATION_NANOS;
+            do {
+                acc += op.getAsLong();
+                ops++;
+            } while (System.nanoTime() < end);
+            sink += acc;
+            return ops;
+        }
+
+        private static long gcMillis() {
+            long total = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionTime());
+            return total;
+        }
+
+        /**
+         * Writes size reservations spread over enough rooms for about 500 stays each, back to
+         * back from a few years ago with short gaps, so no two confirmed stays overlap. Roughly
+         * one in ten is cancelled and refunded.
+         */
+        static void generate(Path dir, long size) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) { throw new RuntimeException(e); }
+            int roomCount = (int) Math.max(10, size / 500);
+            RoomType[] types = RoomType.values();
+            double[] prices = { 2499.0, 3999.0, 6999.0 };
+            List<Room> rooms = new ArrayList<>(roomCount);
+            for (int i = 1; i <= roomCount; i++) {
+                RoomType t = types[i % types.length];
+                rooms.add(new Room(i, String.valueOf(100 * (1 + i / 100) + i % 100), t, prices[t.ordinal()]));
+            }
+            new Catalog(dir.resolve("rooms.csv").toString()).saveAll(rooms);
+            Random rnd = new Random(7);
+            long[] nextFree = new long[roomCount];
+            long start = LocalDate.now().minusYears(4).toEpochDay();
+            Arrays.fill(nextFree, start);
+            try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("reservations.csv"))) {
+                for (long i = 0; i < size; i++) {
+                    Room room = rooms.get((int) (i % roomCount));
+                    long ci = nextFree[room.id - 1] + rnd.nextInt(3);
+                    long co = ci + 1 + rnd.nextInt(4);
+                    nextFree[room.id - 1] = co;
+                    boolean cancelled = rnd.nextInt(10) == 0;
+                    Reservation r = new Reservation(1001 + i, room.id, "Guest " + i, LocalDate.ofEpochDay(ci),
+                            LocalDate.ofEpochDay(co), (co - ci) * room.pricePerNight,
+                            LocalDate.ofEpochDay(ci).minusDays(30).atTime(12, 0), "PAY-" + (100000 + i),
+                            cancelled ? PayStatus.REFUNDED : PayStatus.PAID,
+                            cancelled ? ResStatus.CANCELLED : ResStatus.CONFIRMED,
+                            cancelled ? "RFD-" + (100000 + i) : null);
+                    w.write(r.toCsv()); w.newLine();
+                }
+            } catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        private static List<String> sampleLines(Path file, int max) throws IOException {
+            List<String> out = new ArrayList<>();
+            try (BufferedReader r = Files.newBufferedReader(file)) {
+                for (String line; out.size() < max && (line = r.readLine()) != null; ) out.add(line);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Fires concurrent bookings and cancellations at a scratch store and checks that no room ends
+     * up with overlapping confirmed stays. Run as: stress [threads] [bookings].
+     */
+    static class BookingStress {
+        static boolean run(int threads, int bookings) {
+            try {
+                Path dir = Files.createTempDirectory("booking-stress");
+                ReservationStore store = new ReservationStore(dir.resolve("reservations.csv").toString());
+                int rooms = 20;
+                LocalDate base = LocalDate.now().plusDays(30);
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                AtomicLong booked = new AtomicLong(), rejected = new AtomicLong(), cancelled = new AtomicLong();
+                CountDownLatch go = new CountDownLatch(1);
+                List<Future<?>> done = new ArrayList<>();
+                long t0 = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    int perThread = bookings / threads;
+                    done.add(pool.submit(() -> {
+                        Random rnd = new Random();
+                        go.await();
+                        for (int i = 0; i < perThread; i++) {
+                            LocalDate ci = base.plusDays(rnd.nextInt(90));
+                            Reservation r = store.book(1 + rnd.nextInt(rooms), "Guest " + i, ci,
+                                    ci.plusDays(1 + rnd.nextInt(4)), 1000, "PAY-STRESS");
+                            if (r == null) { rejected.incrementAndGet(); continue; }
+                            booked.incrementAndGet();
+                            if (rnd.nextInt(5) == 0) { store.cancel(r.id, null); cancelled.incrementAndGet(); }
+                        }
+                        return null;
+                    }));
+                }
+                go.countDown();
+                for (Future<?> f : done) f.get();
+                pool.shutdown();
+                long millis = (System.nanoTime() - t0) / 1_000_000;
+                int overlaps = countOverlaps(store.loadAll());
+                store.close();
+                try (var files = Files.list(dir)) {
+                    for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+                }
+                Files.delete(dir);
+                System.out.printf("%d threads: %d booked, %d rejected, %d cancelled in %d ms; overlapping stays: %d\n",
+                        threads, booked.get(), rejected.get(), cancelled.get(), millis, overlaps);
+                return overlaps == 0;
+            } catch (IOException | InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** Full scan, independent of the index, of confirmed stays that share a room night. */
+        static int countOverlaps(List<Reservation> all) {
+            Map<Integer, List<Reservation>> byRoom = new HashMap<>();
+            for (Reservation r : all) {
+                if (r.status == ResStatus.CONFIRMED) byRoom.computeIfAbsent(r.roomId, k -> new ArrayList<>()).add(r);
+            }
+            int overlaps = 0;
+            for (List<Reservation> stays : byRoom.values()) {
+                stays.sort(Comparator.comparing((Reservation r) -> r.checkIn));
+                for (int i = 1; i < stays.size(); i++) {
+                    if (stays.get(i).checkIn.isBefore(stays.get(i - 1).checkOut)) overlaps++;
+                }
+            }
+            return overlaps;
+        }
+    }
+
+    
+
+    /** JMX view of one LatencyRecorder; times are in microseconds. */
+    public interface LatencyMXBean {
+        long getCount();
+        double getMeanMicros();
+        double getP50Micros();
+        double getP99Micros();
+        double getP999Micros();
+        double getMaxMicros();
+    }
+
+    /**
+     * Lock-free latency histogram in the HdrHistogram style: values are bucketed by power of two
+     * with 8 linear sub-buckets each, so any percentile is within 12.5% of the true value while
+     * recording costs one array increment. Counts are cumulative since startup.
+     */
+    static class LatencyRecorder implements LatencyMXBean {
+        private static final int SUB_BITS = 3, SUB = 1 << SUB_BITS, BUCKETS = (64 - SUB_BITS) * SUB;
+
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder(), totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        LatencyRecorder(String name) { this.name = name; }
+
+        /** Records the time elapsed since t0, a System.nanoTime() reading. */
+        void since(long t0) { record(System.nanoTime() - t0); }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /** Upper bound of the bucket holding the q-th quantile, in nanoseconds. */
+        long percentileNanos(double q) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(q * n)), seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= target) return Math.min(lowerBound(b + 1) - 1, maxNanos.get());
+            }
+            return maxNanos.get();
+        }
+
+        long totalNanos() { return totalNanos.sum(); }
+
+        @Override public long getCount() { return count.sum(); }
+        @Override public double getMeanMicros() { long n = count.sum(); return n == 0 ? 0 : totalNanos.sum() / 1e3 / n; }
+        @Override public double getP50Micros() { return percentileNanos(0.5) / 1e3; }
+        @Override public double getP99Micros() { return percentileNanos(0.99) / 1e3; }
+        @Override public double getP999Micros() { return percentileNanos(0.999) / 1e3; }
+        @Override public double getMaxMicros() { return maxNanos.get() / 1e3; }
+
+        private static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+
+        private static long lowerBound(int b) {
+            if (b < SUB) return b;
+            if (b >= BUCKETS) return Long.MAX_VALUE;
+            int exp = b / SUB + SUB_BITS - 1;
+            return (1L << exp) | ((long) (b % SUB) << (exp - SUB_BITS));
+        }
+    }
+
+    /**
+     * Process-wide operation timers and counters, readable over JMX (HotelReservationSystem
+     * domain) and as Prometheus text from the /metrics endpoint or the console menu.
+     */
+    static final class Metrics {
+        private static final List<LatencyRecorder> LATENCIES = new CopyOnWriteArrayList<>();
+        private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+
+        static final LatencyRecorder SEARCH = latency("search");
+        static final LatencyRecorder BOOK = latency("book");
+        static final LatencyRecorder CANCEL = latency("cancel");
+        static final LatencyRecorder LOOKUP = latency("lookup");
+        static final LatencyRecorder CSV_PARSE = latency("csv_parse");
+        static final LatencyRecorder PAYMENT_CHARGE = latency("payment_charge");
+        static final LatencyRecorder PAYMENT_REFUND = latency("payment_refund");
+        static final LatencyRecorder STORE_WRITE = latency("store_write");
+        static final LatencyRecorder STORE_COMPACT = latency("store_compact");
+        static final LatencyRecorder LOCK_WAIT = latency("lock_wait");
+        static final LongAdder PAYMENT_FAILURES = counter("payment_failures");
+        static final LongAdder SEARCH_CACHE_HITS = counter("search_cache_hits");
+        static final LongAdder SEARCH_CACHE_MISSES = counter("search_cache_misses");
+
+        private Metrics() {}
+
+        static LatencyRecorder latency(String name) {
+            LatencyRecorder r = new LatencyRecorder(name);
+            LATENCIES.add(r);
+            return r;
+        }
+
+        static LongAdder counter(String name) {
+            return COUNTERS.computeIfAbsent(name, k -> new LongAdder());
+        }
+
+        /** Registers one MXBean per timer; safe to call more than once. */
+        static void registerJmx() {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (LatencyRecorder r : LATENCIES) {
+                try {
+                    ObjectName name = new ObjectName("HotelReservationSystem:type=Latency,name=" + r.name);
+                    if (!server.isRegistered(name)) server.registerMBean(new StandardMBean(r, LatencyMXBean.class, true), name);
+                } catch (JMException e) { throw new RuntimeException(e); }
+            }
+        }
+
+        static String prometheus() {
+            StringBuilder sb = new StringBuilder();
+            for (LatencyRecorder r : LATENCIES) {
+                String m = "hotel_" + r.name + "_seconds";
+                sb.append("# TYPE ").append(m).append(" summary\n");
+                for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                    sb.append(m).append("{quantile=\"").append(q).append("\"} ").append(r.percentileNanos(q) / 1e9).append('\n');
+                }
+                sb.append(m).append("_sum ").append(r.totalNanos() / 1e9).append('\n');
+                sb.append(m).append("_count ").append(r.getCount()).append('\n');
+            }
+            for (Map.Entry<String, LongAdder> c : COUNTERS.entrySet()) {
+                String m = "hotel_" + c.getKey() + "_total";
+                sb.append("# TYPE ").append(m).append(" counter\n").append(m).append(' ').append(c.getValue().sum()).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Leader side of replication: every create and cancel is numbered and sent to each
+     * connected follower over TCP in the journal's event format. A new follower first gets the
+     * current reservations, then the live stream; a heartbeat every HEARTBEAT_MILLIS carries the
+     * leader's clock so followers can measure lag while idle. A follower that falls more than
+     * MAX_BACKLOG lines behind is dropped and re-snapshots when it reconnects, so a slow
+     * follower never holds memory on the leader.
+     *
+     * Wire format, one line each: "SNAPSHOT <seq> <count>" followed by count reservation CSV
+     * lines, then "<seq> <leaderMillis> <event>" where event is CREATE,<csv>, CANCEL,<id>,
+     * REFUND,<id>,<txn> or HEARTBEAT.
+     */
+    static class ReplicationServer implements ReservationListener, Closeable {
+        static final int DEFAULT_PORT = 9090;
+        static final long HEARTBEAT_MILLIS = 200;
+        static final int MAX_BACKLOG = 100_000;
+
+        private final ReservationStore store;
+        private final ServerSocket socket;
+        private final List<Follower> followers = new CopyOnWriteArrayList<>();
+        private final ScheduledExecutorService heartbeat;
+        private long seq; // guarded by this
+
+        private static class Follower {
+            final Socket socket;
+            final BlockingQueue<String> backlog = new LinkedBlockingQueue<>(MAX_BACKLOG);
+
+            Follower(Socket socket) { this.socket = socket; }
+        }
+
+        ReplicationServer(ReservationStore store, int port) {
+            this.store = store;
+            try {
+                this.socket = new ServerSocket(port);
+            } catch (IOException e) { throw new RuntimeException(e); }
+            store.addListener(this);
+            daemon("replication-accept", this::acceptLoop).start();
+            this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> daemon("replication-heartbeat", r));
+            heartbeat.scheduleAtFixedRate(() -> publish("HEARTBEAT", false), HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            System.out.println("Replicating to followers on port " + port);
+        }
+
+        @Override public void onCreated(Reservation r) { publish("CREATE," + r.toCsv(), true); }
+
+        @Override public void onCancelled(Reservation r) { publish(JournalBackend.cancelEvent(r), true); }
+
+        @Override public void close() {
+            heartbeat.shutdown();
+            try { socket.close(); } catch (IOException ignored) { }
+            for (Follower f : followers) drop(f);
+        }
+
+        private synchronized void publish(String event, boolean change) {
+            if (change) seq++;
+            String line = seq + " " + System.currentTimeMillis() + " " + event;
+            for (Follower f : followers) {
+                if (!f.backlog.offer(line)) drop(f);
+            }
+        }
+
+        private void acceptLoop() {
+            while (!socket.isClosed()) {
+                try {
+                    Follower f = new Follower(socket.accept());
+                    daemon("replication-sender", () -> send(f)).start();
+                } catch (IOException e) {
+                    if (!socket.isClosed()) System.err.println("Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+
+        /** Registers before reading the snapshot, so every change lands in one or both; replay is idempotent. */
+        private void send(Follower f) {
+            long at;
+            synchronized (this) {
+                followers.add(f);
+                at = seq;
+            }
+            try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(f.socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024)) {
+                List<Reservation> all = store.loadAll();
+                w.write("SNAPSHOT " + at + " " + all.size()); w.newLine();
+                for (Reservation r : all) {
+                    w.write(r.toCsv()); w.newLine();
+                }
+                List<String> batch = new ArrayList<>();
+                while (!f.socket.isClosed()) {
+                    batch.add(f.backlog.take());
+                    f.backlog.drainTo(batch);
+                    for (String line : batch) {
+                        w.write(line); w.newLine();
+                    }
+                    w.flush();
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException e) {
+                // follower went away or was dropped; it reconnects and re-snapshots
+            } finally {
+                drop(f);
+            }
+        }
+
+        private void drop(Follower f) {
+            followers.remove(f);
+            try { f.socket.close(); } catch (IOException ignored) { }
+        }
+
+        private static Thread daemon(String name, Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Follower side: a read-only copy of the leader's reservations in a ReservationTable and an
+     * AvailabilityIndex, fed by ReplicationServer, with rooms from the local rooms.csv. Lag is
+     * the age, by the leader's clock, of the last line applied; heartbeats keep it near zero
+     * while the leader is idle, and reads are refused once it passes maxLagMillis. After a
+     * disconnect it reconnects with back-off and swaps in a fresh snapshot once it has one, so
+     * reads keep being served from the old copy meanwhile.
+     */
+    static class ReplicaView {
+        static final long DEFAULT_MAX_LAG_MILLIS = 1_000;
+        private static final long MAX_BACKOFF_MILLIS = 5_000;
+        // a leader that skips this many heartbeats is presumed gone, even if the socket never closes
+        private static final int READ_TIMEOUT_MILLIS = (int) (5 * ReplicationServer.HEARTBEAT_MILLIS);
+
+        private final String host;
+        private final int port;
+        private final Catalog catalog;
+        final long maxLagMillis;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private ReservationTable table = new ReservationTable();  // guarded by lock
+        private AvailabilityIndex index = new AvailabilityIndex(table, table::get);
+        private volatile long appliedSeq, leaderMillis = Long.MIN_VALUE;
+        private volatile boolean connected;
+
+        ReplicaView(String host, int port, Catalog catalog, long maxLagMillis) {
+            this.host = host; this.port = port; this.catalog = catalog; this.maxLagMillis = maxLagMillis;
+            Thread t = new Thread(this::followLoop, "replica-follower");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /** Milliseconds behind the leader, or Long.MAX_VALUE before the first snapshot. */
+        long lagMillis() {
+            long at = leaderMillis;
+            return at == Long.MIN_VALUE ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - at);
+        }
+
+        boolean withinLag() { return lagMillis() <= maxLagMillis; }
+
+        boolean connected() { return connected; }
+
+        long appliedSeq() { return appliedSeq; }
+
+        List<Room> findAvailable(LocalDate inDate, LocalDate outDate, RoomType type) {
+            long t0 = System.nanoTime();
+            List<Room> available = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                for (Room r : catalog.rooms(type)) {
+                    if (index.isFree(r.id, inDate, outDate)) available.add(r);
+                }
+            } finally { lock.readLock().unlock(); }
+            Metrics.SEARCH.since(t0);
+            return available;
+        }
+
+        Reservation findById(long id) {
+            long t0 = System.nanoTime();
+            lock.readLock().lock();
+            try {
+                return table.get(id);
+            } finally {
+                lock.readLock().unlock();
+                Metrics.LOOKUP.since(t0);
+            }
+        }
+
+        private void followLoop() {
+            long backoff = 100;
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host, port), READ_TIMEOUT_MILLIS);
+                    s.setSoTimeout(READ_TIMEOUT_MILLIS);
+                    BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), 64 * 1024);
+                    readSnapshot(r);
+                    connected = true;
+                    backoff = 100;
+                    for (String line; (line = r.readLine()) != null; ) apply(line);
+                } catch (IOException e) {
+                    // leader unreachable, restarted or silent past the read timeout; retry below
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) { return; }
+                backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            }
+        }
+
+        private void readSnapshot(BufferedReader r) throws IOException {
+            String header = r.readLine();
+            if (header == null || !header.startsWith("SNAPSHOT ")) throw new IOException("Expected a snapshot, got " + header);
+            String[] p = header.split(" ");
+            long count = Long.parseLong(p[2]);
+            ReservationTable fresh = new ReservationTable();
+            for (long i = 0; i < count; i++) {
+                String line = r.readLine();
+                if (line == null) throw new EOFException("Snapshot cut short");
+                fresh.put(Reservation.fromCsv(line));
+            }
+            AvailabilityIndex freshIndex = new AvailabilityIndex(fresh, fresh::get);
+            lock.writeLock().lock();
+            try {
+                table = fresh;
+                index = freshIndex;
+            } finally { lock.writeLock().unlock(); }
+            appliedSeq = Long.parseLong(p[1]);
+        }
+
+        private void apply(String line) {
+            int a = line.indexOf(' '), b = line.indexOf(' ', a + 1);
+            long seq = Long.parseLong(line.substring(0, a));
+            long at = Long.parseLong(line.substring(a + 1, b));
+            String event = line.substring(b + 1);
+            if (!event.equals("HEARTBEAT")) {
+                int comma = event.indexOf(',');
+                String op = event.substring(0, comma), body = event.substring(comma + 1);
+                lock.writeLock().lock();
+                try {
+                    if (op.equals("CREATE")) {
+                        Reservation r = Reservation.fromCsv(body);
+                        Reservation old = table.get(r.id);
+                        if (old != null) index.remove(old);
+                        table.put(r);
+                        index.add(r);
+                    } else {
+                        String[] p = op.equals("REFUND") ? Reservation.splitCsv(body) : new String[] { body, null };
+                        Reservation old = table.get(Long.parseLong(p[0]));
+                        if (old != null) {
+                            index.remove(old);
+                            table.put(old.cancelled(p[1]));
+                        }
+                    }
+                } finally { lock.writeLock().unlock(); }
+            }
+            appliedSeq = seq;
+            leaderMillis = at;
+        }
+    }
+
+    /**
+     * JSON over HTTP on the JDK's built-in server, one virtual thread per request when the
+     * runtime has them (Java 21+) and a bounded platform pool otherwise.
+     *
+     *   GET  /rooms
+     *   GET  /search?checkIn=YYYY-MM-DD&checkOut=YYYY-MM-DD[&type=SUITE]  rooms with the stay's total
+     *   POST /book          roomId, guest, checkIn, checkOut, card
+     *   POST /cancel        id
+     *   GET  /reservations[/{id}]  filters: status, roomId, from, to; paging: limit, cursor
+     *   GET  /export        format=csv|json plus the same filters, streamed
+     *   GET  /metrics       Prometheus text format
+     *   GET  /analytics     from, to[, type]: occupancy, revenue, ADR, RevPAR, cancel/refund rates
+     *   GET  /analytics/verify  compares the live aggregates with a full scan
+     *
+     * A follower (HttpApi over a ReplicaView) serves /rooms, /search, /reservations/{id} and
+     * /metrics from its copy, answers 503 while it lags beyond its bound, rejects writes, and
+     * adds GET /replication with its lag.
+     *
+     * Over a PropertyGroup it serves GET /properties, GET /search across every property (each
+     * offer naming its property), and GET /rooms and GET /reservations/{id} for one property
+     * chosen with property=. Bookings are not taken in this mode.
+     *
+     * Parameters may come in the query string or as a form-encoded body.
+     */
+    static class HttpApi {
+        static final int DEFAULT_PORT = 8080;
+        static final int DEFAULT_FOLLOWER_PORT = 8081;
+
+        private final HotelReservationSystem app;
+        private final ReplicaView replica;
+        private final PropertyGroup group;
+        private HttpServer server;
+
+        HttpApi(HotelReservationSystem app) { this.app = app; this.replica = null; this.group = null; }
+
+        HttpApi(ReplicaView replica) { this.app = null; this.replica = replica; this.group = null; }
+
+        HttpApi(PropertyGroup group) { this.app = null; this.replica = null; this.group = group; }
+
+        void start(int port) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(port), 4096);
+            } catch (IOException e) { throw new RuntimeException(e); }
+            if (replica != null) followerRoutes();
+            else if (group != null) groupRoutes();
+            else routes();
+            server.setExecutor(requestExecutor());
+            server.start();
+            System.out.println("HTTP API listening on port " + port);
+        }
+
+        private void followerRoutes() {
+            route("/rooms", "GET", (p, tail) -> reply(200, rooms(replica.catalog.all())));
+            route("/metrics", "GET", (p, tail) -> new Reply(200, Metrics.prometheus(), "text/plain; version=0.0.4; charset=utf-8"));
+            route("/replication", "GET", (p, tail) -> reply(200, "{\"connected\":" + replica.connected()
+                    + ",\"appliedSeq\":" + replica.appliedSeq() + ",\"lagMillis\":"
+                    + (replica.lagMillis() == Long.MAX_VALUE ? "null" : String.valueOf(replica.lagMillis()))
+                    + ",\"maxLagMillis\":" + replica.maxLagMillis + "}"));
+            route("/search", "GET", (p, tail) -> {
+                if (!replica.withinLag()) return lagging();
+                LocalDate inDate = date(p, "checkIn"), outDate = date(p, "checkOut");
+                if (!outDate.isAfter(inDate)) return error(400, "checkOut must be after checkIn");
+                String type = p.get("type");
+                RoomType t = type == null || type.isEmpty() ? null : RoomType.valueOf(type.toUpperCase());
+                return reply(200, offers(SearchCache.Result.quoted(replica.findAvailable(inDate, outDate, t), inDate, outDate)));
+            });
+            route("/reservations", "GET", (p, tail) -> {
+                if (tail.isEmpty()) return error(404, "Listings are served by the leader");
+                if (!replica.withinLag()) return lagging();
+                Reservation r = replica.findById(Long.parseLong(tail));
+                return r == null ? error(404, "Reservation not found.") : reply(200, json(r));
+            });
+            for (String write : new String[] { "/book", "/cancel" }) {
+                route(write, "POST", (p, tail) -> error(503, "Read-only follower; send writes to the leader"));
+            }
+        }
+
+        private void groupRoutes() {
+            route("/properties", "GET", (p, tail) -> {
+                StringBuilder sb = new StringBuilder("[");
+                for (PropertyGroup.Property prop : group.properties()) {
+                    if (sb.length() > 1) sb.append(',');
+                    sb.append("{\"name\":").append(str(prop.name)).append(",\"rooms\":").append(prop.catalog.all().size()).append('}');
+                }
+                return reply(200, sb.append(']').toString());
+            });
+            route("/search", "GET", (p, tail) -> {
+                LocalDate inDate = date(p, "checkIn"), outDate = date(p, "checkOut");
+                if (!outDate.isAfter(inDate)) return error(400, "checkOut must be after checkIn");
+                String type = p.get("type");
+                RoomType t = type == null || type.isEmpty() ? null : RoomType.valueOf(type.toUpperCase());
+                StringBuilder sb = new StringBuilder("[");
+                for (PropertyGroup.Offer o : group.search(inDate, outDate, t)) {
+                    if (sb.length() > 1) sb.append(',');
+                    String room = json(o.room);
+                    sb.append("{\"property\":").append(str(o.property)).append(',').append(room, 1, room.length() - 1)
+                            .append(",\"total\":").append(quote(o.room, inDate, outDate)).append('}');
+                }
+                return reply(200, sb.append(']').toString());
+            });
+            route("/rooms", "GET", (p, tail) -> {
+                PropertyGroup.Property prop = group.property(required(p, "property"));
+                return prop == null ? error(404, "Unknown property") : reply(200, rooms(prop.catalog.all()));
+            });
+            route("/reservations", "GET", (p, tail) -> {
+                if (tail.isEmpty()) return error(404, "Listings are not served across properties");
+                PropertyGroup.Property prop = group.property(required(p, "property"));
+                if (prop == null) return error(404, "Unknown property");
+                Reservation r = prop.store.findById(Long.parseLong(tail));
+                return r == null ? error(404, "Reservation not found.") : reply(200, json(r));
+            });
+            route("/metrics", "GET", (p, tail) -> new Reply(200, Metrics.prometheus(), "text/plain; version=0.0.4; charset=utf-8"));
+        }
+
+        private Reply lagging() {
+            return error(503, "Replica is " + (replica.lagMillis() == Long.MAX_VALUE ? "not yet synced" :
+                    replica.lagMillis() + " ms behind the leader"));
+        }
+
+        private void routes() {
+            route("/rooms", "GET", (p, tail) -> reply(200, rooms(app.catalog.all())));
+            route("/analytics", "GET", (p, tail) -> {
+                if (tail.equals("verify")) {
+                    List<String> diff = app.analytics.verify(app.store);
+                    StringBuilder sb = new StringBuilder("{\"match\":").append(diff.isEmpty()).append(",\"differences\":[");
+                    for (int i = 0; i < Math.min(20, diff.size()); i++) {
+                        if (i > 0) sb.append(',');
+                        appendStr(sb, diff.get(i));
+                    }
+                    return reply(200, sb.append("]}").toString());
+                }
+                String type = p.get("type");
+                Analytics.Report r = app.analytics.report(date(p, "from"), date(p, "to"),
+                        type == null || type.isEmpty() ? null : RoomType.valueOf(type.toUpperCase()));
+                return reply(200, "{\"from\":\"" + r.from + "\",\"to\":\"" + r.to + "\",\"type\":"
+                        + (r.type == null ? "null" : "\"" + r.type + "\"") + ",\"roomNights\":" + r.roomNights
+                        + ",\"availableRoomNights\":" + r.availableRoomNights + ",\"occupancy\":" + r.occupancy()
+                        + ",\"revenue\":" + r.revenue + ",\"adr\":" + r.adr() + ",\"revPar\":" + r.revPar()
+                        + ",\"bookings\":" + r.bookings + ",\"cancellations\":" + r.cancellations + ",\"refunds\":" + r.refunds
+                        + ",\"cancellationRate\":" + r.cancellationRate() + ",\"refundRate\":" + r.refundRate() + "}");
+            });
+            route("/metrics", "GET", (p, tail) -> new Reply(200, Metrics.prometheus(), "text/plain; version=0.0.4; charset=utf-8"));
+            route("/search", "GET", (p, tail) -> {
+                LocalDate inDate = date(p, "checkIn"), outDate = date(p, "checkOut");
+                if (!outDate.isAfter(inDate)) return error(400, "checkOut must be after checkIn");
+                String type = p.get("type");
+                RoomType t = type == null || type.isEmpty() ? null : RoomType.valueOf(type.toUpperCase());
+                return reply(200, offers(app.searchCache.search(inDate, outDate, t)));
+            });
+            route("/book", "POST", (p, tail) -> {
+                Room room = app.catalog.byId(Integer.parseInt(required(p, "roomId")));
+                if (room == null) return error(404, "Unknown room");
+                LocalDate inDate = date(p, "checkIn"), outDate = date(p, "checkOut");
+                String invalid = invalidStay(inDate, outDate);
+                if (invalid != null) return error(400, invalid);
+                Outcome o = app.book(room, required(p, "guest"), inDate, outDate,
+                        required(p, "card").replaceAll("\\s+", "")).join();
+                return o.ok ? reply(201, json(o.reservation)) : error(409, o.message);
+            });
+            route("/cancel", "POST", (p, tail) -> {
+                long id = Long.parseLong(required(p, "id"));
+                if (app.store.findById(id) == null) return error(404, "Reservation not found.");
+                Outcome o = app.cancel(id).join();
+                return o.ok ? reply(200, json(o.reservation)) : error(409, o.message);
+            });
+            route("/reservations", "GET", (p, tail) -> {
+                if (!tail.isEmpty()) {
+                    Reservation r = app.store.findById(Long.parseLong(tail));
+                    return r == null ? error(404, "Reservation not found.") : reply(200, json(r));
+                }
+                ReservationFilter f = ReservationFilter.parse(p);
+                if (p.containsKey("limit")) {
+                    long cursor = p.containsKey("cursor") ? Long.parseLong(p.get("cursor")) : 0;
+                    StringBuilder sb = new StringBuilder("{\"items\":[");
+                    int mark = sb.length();
+                    long next = app.store.scan(f, cursor, Long.parseLong(p.get("limit")), r -> {
+                        if (sb.length() > mark) sb.append(',');
+                        sb.append(json(r));
+                    });
+                    return reply(200, sb.append("],\"nextCursor\":").append(next < 0 ? "null" : String.valueOf(next)).append('}').toString());
+                }
+                return stream("application/json; charset=utf-8", w -> ReservationExport.write(app.store, f, "json", w));
+            });
+            route("/export", "GET", (p, tail) -> {
+                String format = p.getOrDefault("format", "csv");
+                ReservationFilter f = ReservationFilter.parse(p);
+                return stream(format.equals("json") ? "application/json; charset=utf-8" : "text/csv; charset=utf-8",
+                        w -> ReservationExport.write(app.store, f, format, w));
+            });
+        }
+
+        /** Virtual thread per task where available, looked up reflectively so older JDKs still run. */
+        static ExecutorService requestExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newFixedThreadPool(Math.max(32, Runtime.getRuntime().availableProcessors() * 8));
+            }
+        }
+
+        private interface Body {
+            void writeTo(Writer w) throws IOException;
+        }
+
+        /** Either a ready body or one written straight to the socket (chunked) as it is produced. */
+        private static class Reply {
+            final int status; final String body; final String contentType; final Body stream;
+            Reply(int status, String body, String contentType){ this(status, body, contentType, null); }
+            Reply(int status, String body, String contentType, Body stream){
+                this.status=status; this.body=body; this.contentType=contentType; this.stream=stream;
+            }
+        }
+
+        private interface Handler {
+            Reply handle(Map<String, String> params, String tail) throws Exception;
+        }
+
+        private void route(String prefix, String method, Handler h) {
+            server.createContext(prefix, ex -> {
+                Reply res;
+                try {
+                    String path = ex.getRequestURI().getPath();
+                    String tail = path.length() > prefix.length() ? path.substring(prefix.length() + 1) : "";
+                    if (!ex.getRequestMethod().equals(method)) res = error(405, "Use " + method);
+                    else res = h.handle(params(ex), tail);
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    res = error(400, e.getMessage());
+                } catch (Exception e) {
+                    res = error(500, String.valueOf(e.getMessage()));
+                }
+                ex.getResponseHeaders().set("Content-Type", res.contentType);
+                if (res.stream != null) {
+                    ex.sendResponseHeaders(res.status, 0);
+                    try (Writer w = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8), 64 * 1024)) {
+                        res.stream.writeTo(w);
+                    }
+                    return;
+                }
+                byte[] body = res.body.getBytes(StandardCharsets.UTF_8);
+                ex.sendResponseHeaders(res.status, body.length);
+                try (OutputStream out = ex.getResponseBody()) { out.write(body); }
+            });
+        }
+
+        private static Map<String, String> params(HttpExchange ex) throws IOException {
+            Map<String, String> p = new HashMap<>();
+            parseForm(ex.getRequestURI().getRawQuery(), p);
+            try (InputStream body = ex.getRequestBody()) {
+                parseForm(new String(body.readAllBytes(), StandardCharsets.UTF_8), p);
+            }
+            return p;
+        }
+
+        private static void parseForm(String s, Map<String, String> into) {
+            if (s == null || s.isEmpty()) return;
+            for (String pair : s.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq < 0) continue;
+                into.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                         URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+
+        private static String required(Map<String, String> p, String name) {
+            String v = p.get(name);
+            if (v == null || v.isBlank()) throw new IllegalArgumentException("Missing parameter: " + name);
+            return v.trim();
+        }
+
+        /** A date parameter, refused (400) outside the window analytics counts, so no request can store or query one. */
+        private static LocalDate date(Map<String, String> p, String name) {
+            LocalDate d = LocalDate.parse(required(p, name));
+            if (d.toEpochDay() < Analytics.FIRST_DAY || d.toEpochDay() > Analytics.END_DAY) {
+                throw new IllegalArgumentException(name + " must be between " + LocalDate.ofEpochDay(Analytics.FIRST_DAY)
+                        + " and " + LocalDate.ofEpochDay(Analytics.END_DAY));
+            }
+            return d;
+        }
+
+        private static Reply stream(String contentType, Body body) { return new Reply(200, null, contentType, body); }
+
+        private static Reply reply(int status, String json) { return new Reply(status, json, "application/json; charset=utf-8"); }
+
+        private static Reply error(int status, String message) {
+            return reply(status, "{\"error\":" + str(message) + "}");
+        }
+
+        static String rooms(List<Room> rooms) {
+            StringBuilder sb = new StringBuilder("[");
+            for (Room r : rooms) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(json(r));
+            }
+            return sb.append(']').toString();
+        }
+
+        /** Rooms as in rooms(), each with the stay's "total" added. */
+        static String offers(SearchCache.Result result) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < result.rooms.size(); i++) {
+                if (i > 0) sb.append(',');
+                String room = json(result.rooms.get(i));
+                sb.append(room, 0, room.length() - 1).append(",\"total\":").append(result.totals[i]).append('}');
+            }
+            return sb.append(']').toString();
+        }
+
+        static String json(Room r) {
+            return "{\"id\":" + r.id + ",\"number\":" + str(r.number) + ",\"type\":\"" + r.type
+                    + "\",\"pricePerNight\":" + r.pricePerNight + "}";
+        }
+
+        static String json(Reservation r) {
+            return appendJson(new StringBuilder(256), r).toString();
+        }
+
+        static StringBuilder appendJson(StringBuilder sb, Reservation r) {
+            sb.append("{\"id\":").append(r.id).append(",\"roomId\":").append(r.roomId).append(",\"guest\":");
+            appendStr(sb, r.guestName);
+            sb.append(",\"checkIn\":\"").append(r.checkIn).append("\",\"checkOut\":\"").append(r.checkOut)
+              .append("\",\"totalAmount\":").append(r.totalAmount).append(",\"createdAt\":\"").append(r.createdAt)
+              .append("\",\"paymentTxnId\":");
+            appendStr(sb, r.paymentTxnId);
+            sb.append(",\"paymentStatus\":\"").append(r.paymentStatus).append("\",\"status\":\"").append(r.status)
+              .append("\",\"refundTxnId\":");
+            appendStr(sb, r.refundTxnId);
+            return sb.append('}');
+        }
+
+        static String str(String s) {
+            return appendStr(new StringBuilder(), s).toString();
+        }
+
+        static StringBuilder appendStr(StringBuilder sb, String s) {
+            if (s == null) return sb.append("null");
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            return sb.append('"');
+        }
+    }
+
+    /**
+     * Drives a running HttpApi with concurrent clients, mostly searches with some bookings, and
+     * prints throughput and latency percentiles. Run as: loadtest [baseUrl] [clients] [requests].
+     */
+    static class HttpLoadTest {
+        static void run(String base, int clients, int requests) {
+            HttpClient http = HttpClient.newBuilder().executor(HttpApi.requestExecutor()).build();
+            long[] latencies = new long[requests];
+            AtomicLong next = new AtomicLong(), failures = new AtomicLong();
+            ExecutorService pool = HttpApi.requestExecutor();
+            List<Future<?>> done = new ArrayList<>();
+            long t0 = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                done.add(pool.submit(() -> {
+                    Random rnd = new Random();
+                    for (long i; (i = next.getAndIncrement()) < requests; ) {
+                        LocalDate ci = LocalDate.now().plusDays(7 + rnd.nextInt(300));
+                        String dates = "checkIn=" + ci + "&checkOut=" + ci.plusDays(1 + rnd.nextInt(3));
+                        HttpRequest req = rnd.nextInt(10) == 0
+                                ? HttpRequest.newBuilder(URI.create(base + "/book"))
+                                    .header("Content-Type", "application/x-www-form-urlencoded")
+                                    .POST(HttpRequest.BodyPublishers.ofString(dates + "&roomId=" + (1 + rnd.nextInt(5))
+                                            + "&guest=Load+Test&card=4111111111111111")).build()
+                                : HttpRequest.newBuilder(URI.create(base + "/search?" + dates)).build();
+                        long start = System.nanoTime();
+                        try {
+                            int status = http.send(req, HttpResponse.BodyHandlers.discarding()).statusCode();
+                            if (status >= 500) failures.incrementAndGet();
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[(int) i] = System.nanoTime() - start;
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> f : done) f.get();
+            } catch (InterruptedException | ExecutionException e) { throw new RuntimeException(e); }
+            pool.shutdown();
+            double secs = (System.nanoTime() - t0) / 1e9;
+            Arrays.sort(latencies);
+            System.out.printf("%d requests from %d clients in %.2f s: %.0f req/s, %d failed%n",
+                    requests, clients, secs, requests / secs, failures.get());
+            System.out.printf("latency ms p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+                    latencies[requests / 2] / 1e6, latencies[(int) (requests * 0.99)] / 1e6,
+                    latencies[(int) (requests * 0.999)] / 1e6, latencies[requests - 1] / 1e6);
+        }
+    }
+
+    /** A payment provider; calls block until the provider answers. */
+    interface PaymentGateway {
+        PaymentResult charge(String cardNumber, double amount);
+        /** Refunds several payments in one round trip; results line up with the inputs. */
+        List<PaymentResult> refund(List<String> paymentTxnIds, double[] amounts);
+    }
+
+    /**
+     * Stand-in for a real provider: validates the card with Luhn, and can be made slow
+     * (latencyMillis per round trip) or flaky (failureRate of calls rejected) for testing.
+     * Like real providers, refunds are idempotent per original payment: a repeat returns the
+     * first refund's transaction instead of paying out twice.
+     */
+    static class SimulatedGateway implements PaymentGateway {
+        private final long latencyMillis;
+        private final double failureRate;
+        private final Map<String, String> refunded = new ConcurrentHashMap<>();
+        SimulatedGateway(long latencyMillis, double failureRate) {
+            this.latencyMillis = latencyMillis; this.failureRate = failureRate;
+        }
+        @Override public PaymentResult charge(String cardNumber, double amount) {
+            roundTrip();
+            if (amount <= 0) return new PaymentResult(false, null, "Invalid amount");
+            if (!isPlausibleCard(cardNumber)) return new PaymentResult(false, null, "Card declined");
+            if (flaky()) return new PaymentResult(false, null, "Gateway error");
+            String txn = genTxn("PAY");
+            return new PaymentResult(true, txn, "Charged ₹" + String.format("%.2f", amount));
+        }
+        @Override public List<PaymentResult> refund(List<String> paymentTxnIds, double[] amounts) {
+            roundTrip();
+            List<PaymentResult> out = new ArrayList<>(paymentTxnIds.size());
+            for (int i = 0; i < paymentTxnIds.size(); i++) {
+                String paymentTxnId = paymentTxnIds.get(i);
+                if (paymentTxnId == null || paymentTxnId.isEmpty())
+                    out.add(new PaymentResult(false, null, "Original payment missing"));
+                else if (!refunded.containsKey(paymentTxnId) && flaky())
+                    out.add(new PaymentResult(false, null, "Gateway error"));
+                else
+                    out.add(new PaymentResult(true, refunded.computeIfAbsent(paymentTxnId, k -> genTxn("RFD")),
+                            "Refunded ₹" + String.format("%.2f", amounts[i])));
+            }
+            return out;
+        }
+        private void roundTrip() {
+            if (latencyMillis <= 0) return;
+            try { Thread.sleep(latencyMillis); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        private boolean flaky() { return failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate; }
+        private boolean isPlausibleCard(String card) {
+            if (card == null || !card.matches("\\d{16}")) return false;
+            return luhn(card);
+        }
+        static boolean luhn(String s){
+            int sum=0; boolean alt=false;
+            for (int i=s.length()-1;i>=0;i--){
+                int n=s.charAt(i)-'0';
+                if (alt){ n*=2; if (n>9) n-=9; }
+                sum+=n; alt=!alt;
+            }
+            return sum%10==0;
+        }
+        private static String genTxn(String prefix){
+            return prefix + "-" + (100000 + ThreadLocalRandom.current().nextInt(900000)) + "-" + System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Asynchronous front end to a PaymentGateway. At most maxInFlight gateway calls run at once,
+     * a charge or refund gives up after timeoutMillis, and refunds are queued and sent in
+     * batches of up to REFUND_BATCH (or whatever has queued after REFUND_LINGER_MILLIS). A charge
+     * that succeeds after its caller already timed out is refunded straight away so no one pays
+     * for nothing.
+     */
+    static class PaymentProcessor {
+        static final int DEFAULT_MAX_IN_FLIGHT = 64;
+        static final long DEFAULT_TIMEOUT_MILLIS = 5_000;
+        static final int REFUND_BATCH = 20;
+        static final long REFUND_LINGER_MILLIS = 20;
+
+        private static class PendingRefund {
+            final String paymentTxnId; final double amount;
+            final CompletableFuture<PaymentResult> result = new CompletableFuture<>();
+            PendingRefund(String paymentTxnId, double amount){ this.paymentTxnId=paymentTxnId; this.amount=amount; }
+        }
+
+        private final PaymentGateway gateway;
+        private final ExecutorService calls;
+        private final long timeoutMillis;
+        private final List<PendingRefund> refunds = new ArrayList<>();
+
+        PaymentProcessor(PaymentGateway gateway) { this(gateway, DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT_MILLIS); }
+
+        PaymentProcessor(PaymentGateway gateway, int maxInFlight, long timeoutMillis) {
+            this.gateway = gateway;
+            this.timeoutMillis = timeoutMillis;
+            this.calls = Executors.newFixedThreadPool(maxInFlight, r -> {
+                Thread t = new Thread(r, "payment-gateway");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        CompletableFuture<PaymentResult> charge(String cardNumber, double amount) {
+            CompletableFuture<PaymentResult> result = measured(new CompletableFuture<>(), Metrics.PAYMENT_CHARGE)
+                    .completeOnTimeout(new PaymentResult(false, null, "Payment gateway timed out"), timeoutMillis, TimeUnit.MILLISECONDS);
+            CompletableFuture.supplyAsync(() -> gateway.charge(cardNumber, amount), calls).whenComplete((p, e) -> {
+                boolean answered = result.complete(e == null ? p : new PaymentResult(false, null, "Gateway error: " + e.getMessage()));
+                if (!answered && e == null && p.success) refund(p.txnId, amount); // too late for the caller
+            });
+            return result;
+        }
+
+        CompletableFuture<PaymentResult> refund(String paymentTxnId, double amount) {
+            return refund(paymentTxnId, amount, late -> { });
+        }
+
+        /**
+         * Queues a refund for the next batch; the caller hears back within timeoutMillis either
+         * way. A refund still queued by then is withdrawn before the gateway sees it. One already
+         * sent may still be paid out, so the gateway's answer, when it finally comes, goes to
+         * late instead. Refunds are idempotent per payment at the gateway, so asking again with
+         * the same paymentTxnId is a safe way to find out what happened.
+         */
+        CompletableFuture<PaymentResult> refund(String paymentTxnId, double amount, Consumer<PaymentResult> late) {
+            PendingRefund r = new PendingRefund(paymentTxnId, amount);
+            boolean full, first;
+            synchronized (refunds) {
+                refunds.add(r);
+                full = refunds.size() >= REFUND_BATCH;
+                first = refunds.size() == 1;
+            }
+            if (full) calls.execute(this::flushRefunds);
+            else if (first) CompletableFuture.delayedExecutor(REFUND_LINGER_MILLIS, TimeUnit.MILLISECONDS, calls).execute(this::flushRefunds);
+            CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                synchronized (refunds) {
+                    if (!refunds.remove(r)) return; // already sent
+                }
+                r.result.complete(new PaymentResult(false, null, "Refund gateway timed out"));
+            });
+            CompletableFuture<PaymentResult> result = measured(new CompletableFuture<>(), Metrics.PAYMENT_REFUND)
+                    .completeOnTimeout(new PaymentResult(false, null, "Refund gateway timed out"), timeoutMillis, TimeUnit.MILLISECONDS);
+            r.result.thenAccept(p -> {
+                if (!result.complete(p)) late.accept(p);
+            });
+            return result;
+        }
+
+        private void flushRefunds() {
+            List<PendingRefund> batch;
+            synchronized (refunds) {
+                if (refunds.isEmpty()) return;
+                batch = new ArrayList<>(refunds);
+                refunds.clear();
+            }
+            List<String> txns = new ArrayList<>(batch.size());
+            double[] amounts = new double[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                txns.add(batch.get(i).paymentTxnId);
+                amounts[i] = batch.get(i).amount;
+            }
+            try {
+                List<PaymentResult> results = gateway.refund(txns, amounts);
+                for (int i = 0; i < batch.size(); i++) batch.get(i).result.complete(results.get(i));
+            } catch (RuntimeException e) {
+                for (PendingRefund r : batch) r.result.complete(new PaymentResult(false, null, "Gateway error: " + e.getMessage()));
+            }
+        }
+
+        private static CompletableFuture<PaymentResult> measured(CompletableFuture<PaymentResult> result, LatencyRecorder latency) {
+            long t0 = System.nanoTime();
+            result.thenAccept(p -> {
+                latency.since(t0);
+                if (!p.success) Metrics.PAYMENT_FAILURES.increment();
+            });
+            return result;
+        }
+    }
+
+    static class PaymentResult {
+        final boolean success; final String txnId; final String message;
+        PaymentResult(boolean success, String txnId, String message){ this.success=success; this.txnId=txnId; this.message=message; }
+    }
+
+    static class Outcome {
+        final boolean ok; final Reservation reservation; final String message;
+        private Outcome(boolean ok, Reservation reservation, String message){ this.ok=ok; this.reservation=reservation; this.message=message; }
+        static Outcome done(Reservation r){ return new Outcome(true, r, null); }
+        static Outcome failed(String message){ return new Outcome(false, null, message); }
     }
 }